@@ -0,0 +1,821 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import st.CompiledTemplate;
+import st.ConcurrentEntryMap;
+import st.CsvMailMerge;
+import st.EntryMap;
+import st.EntryMapSnapshot;
+import st.KeyMatcher;
+import st.OverlayEntryMap;
+import st.RecordColumns;
+import st.TemplateEngine;
+
+/*
+ * Simple wall-clock benchmarks for the template engine. There is no benchmark harness in
+ * this project, so every case warms up first and then reports the best of a few runs.
+ *
+ *   javac -cp . TemplateEngineBenchmark.java
+ *   java -cp . TemplateEngineBenchmark [case]
+ */
+public class TemplateEngineBenchmark {
+
+    private static final int WARMUP_RUNS = 10;
+    private static final int MEASURED_RUNS = 10;
+
+    public static void main(String[] args) {
+        String only = args.length > 0 ? args[0] : null;
+        if (only == null || only.equals("sort")) {
+            benchmarkSort();
+        }
+        if (only == null || only.equals("alloc")) {
+            benchmarkAllocation();
+        }
+        if (only == null || only.equals("lookup")) {
+            benchmarkLookup();
+        }
+        if (only == null || only.equals("matcher")) {
+            benchmarkMatcher();
+        }
+        if (only == null || only.equals("document")) {
+            benchmarkDocument();
+        }
+        if (only == null || only.equals("nesting")) {
+            benchmarkNesting();
+        }
+        if (only == null || only.equals("modes")) {
+            benchmarkModes();
+        }
+        if (only == null || only.equals("count")) {
+            benchmarkCount();
+        }
+        if (only == null || only.equals("contention")) {
+            benchmarkContention();
+        }
+        if (only == null || only.equals("memory")) {
+            benchmarkMemory();
+        }
+        if (only == null || only.equals("bulk")) {
+            benchmarkBulk();
+        }
+        if (only == null || only.equals("overlay")) {
+            benchmarkOverlay();
+        }
+        if (only == null || only.equals("snapshot")) {
+            benchmarkSnapshot();
+        }
+        if (only == null || only.equals("lazy")) {
+            benchmarkLazy();
+        }
+        if (only == null || only.equals("update")) {
+            benchmarkUpdate();
+        }
+        if (only == null || only.equals("threads")) {
+            benchmarkThreads();
+        }
+        if (only == null || only.equals("batch")) {
+            benchmarkBatch();
+        }
+        if (only == null || only.equals("merge")) {
+            benchmarkMerge();
+        }
+        if (only == null || only.equals("csv")) {
+            benchmarkCsv();
+        }
+        if (only == null || only.equals("appendable")) {
+            benchmarkAppendable();
+        }
+    }
+
+    /*
+     * Parsing and spec7 sorting (TemplateEngine.compile) for 10 to 1,000,000 templates.
+     * The time per template should stay roughly flat as the count grows.
+     */
+    private static void benchmarkSort() {
+        TemplateEngine engine = new TemplateEngine();
+        System.out.println("sort: templates, total ms, ns/template");
+        for (int count = 10; count <= 1000000; count *= 10) {
+            final String template = generateTemplate(count);
+            long nanos = measure(() -> engine.compile(template));
+            System.out.println(String.format(Locale.ROOT, "sort: %9d %10.3f %8.1f", count, nanos / 1e6, (double) nanos / count));
+        }
+    }
+
+    /*
+     * Bytes allocated by the calling thread per compile() and per evaluate() of a document
+     * with 1,000 templates, half of which are matched.
+     */
+    private static void benchmarkAllocation() {
+        TemplateEngine engine = new TemplateEngine();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < 89; i += 2) {
+            map.store("key" + i, "value" + i, false);
+        }
+        final String template = generateTemplate(1000);
+        long compileBytes = measureAllocation(() -> engine.compile(template), 500);
+        long evaluateBytes = measureAllocation(() -> engine.evaluate(template, map, "keep-unmatched"), 500);
+        System.out.println("alloc: compile  bytes/op " + compileBytes);
+        System.out.println("alloc: evaluate bytes/op " + evaluateBytes);
+    }
+
+    /*
+     * Evaluation of 1,000 templates against maps of 50 to 5,000 entries, where only the last
+     * entries match. The cost should not grow with the size of the map.
+     */
+    private static void benchmarkLookup() {
+        TemplateEngine engine = new TemplateEngine();
+        final String template = generateTemplate(1000);
+        System.out.println("lookup: entries, ms/evaluate");
+        for (int size = 50; size <= 5000; size *= 10) {
+            EntryMap map = new EntryMap();
+            for (int i = 0; i < size; i++) {
+                map.store("unused " + i, "value" + i, i % 2 == 0);
+            }
+            for (int i = 0; i < 89; i += 2) {
+                map.store("KEY" + i, "value" + i, false);
+            }
+            long nanos = measure(() -> engine.evaluate(template, map, "delete-unmatched"));
+            System.out.println(String.format(Locale.ROOT, "lookup: %6d %10.3f", size, nanos / 1e6));
+        }
+    }
+
+    /*
+     * One million key comparisons with KeyMatcher against the replaceAll/toLowerCase comparison
+     * that TemplateEngine.isAMatch used to do.
+     */
+    private static void benchmarkMatcher() {
+        final String[] contents = {"middle name", "Middle  Name", "middlename", "surname", "first\tname"};
+        final String[] patterns = {"middle name", "MIDDLENAME", "middle game", "sur name"};
+        final int comparisons = 1000000;
+        final boolean[] sink = new boolean[1];
+        Runnable regex = () -> {
+            for (int i = 0; i < comparisons; i++) {
+                String left = contents[i % contents.length].replaceAll("\\s", "");
+                String right = patterns[i % patterns.length].replaceAll("\\s", "");
+                sink[0] ^= (i & 1) == 0 ? left.equals(right) : left.toLowerCase().equals(right.toLowerCase());
+            }
+        };
+        Runnable matcher = () -> {
+            for (int i = 0; i < comparisons; i++) {
+                sink[0] ^= KeyMatcher.matches(contents[i % contents.length], patterns[i % patterns.length], (i & 1) == 0);
+            }
+        };
+        System.out.println(String.format(Locale.ROOT, "matcher: replaceAll %8.3f ms, %10d bytes",
+                measure(regex) / 1e6, measureAllocation(regex, 1)));
+        System.out.println(String.format(Locale.ROOT, "matcher: KeyMatcher %8.3f ms, %10d bytes",
+                measure(matcher) / 1e6, measureAllocation(matcher, 1)));
+    }
+
+    /*
+     * Evaluation of report-like documents from 20 KB to 2 MB with a template every ~100
+     * characters. The time per template should not grow with the size of the document.
+     */
+    private static void benchmarkDocument() {
+        TemplateEngine engine = new TemplateEngine();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < 89; i += 2) {
+            map.store("key" + i, "value" + i, false);
+        }
+        System.out.println("document: KB, templates, ms/evaluate");
+        for (int kilobytes = 20; kilobytes <= 2000; kilobytes *= 10) {
+            int count = kilobytes * 10;
+            final String template = generateDocument(count);
+            long nanos = measure(() -> engine.evaluate(template, map, "delete-unmatched"));
+            System.out.println(String.format(Locale.ROOT, "document: %5d %8d %10.3f", template.length() / 1000, count, nanos / 1e6));
+        }
+    }
+
+    /*
+     * Evaluation of configuration-like templates nested 5 to 40 deep, 200 of them side by side,
+     * where every level is matched: ${level1 ${level2 ... ${leaf}}} with each level resolving to "v".
+     */
+    private static void benchmarkNesting() {
+        TemplateEngine engine = new TemplateEngine();
+        System.out.println("nesting: depth, templates, ms/evaluate");
+        for (int depth = 5; depth <= 40; depth *= 2) {
+            EntryMap map = new EntryMap();
+            StringBuilder nested = new StringBuilder("${leaf}");
+            map.store("leaf", "v", false);
+            for (int level = depth - 1; level >= 1; level--) {
+                nested.insert(0, "${level" + level + " ").append("}");
+                map.store("level" + level + " v", "v", false);
+            }
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                builder.append("key").append(i).append(": ").append(nested).append("\n");
+            }
+            final String template = builder.toString();
+            long nanos = measure(() -> engine.evaluate(template, map, "keep-unmatched"));
+            System.out.println(String.format(Locale.ROOT, "nesting: %5d %8d %10.3f", depth, depth * 200, nanos / 1e6));
+        }
+    }
+
+    /*
+     * Time and allocation of each matching mode on a 176 KB document with 2,000 templates, half
+     * of them unmatched.
+     */
+    private static void benchmarkModes() {
+        TemplateEngine engine = new TemplateEngine();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < 89; i += 2) {
+            map.store("key" + i, "value" + i, false);
+        }
+        final String template = generateDocument(2000);
+        System.out.println("modes: mode, ms/evaluate, bytes/evaluate");
+        for (String mode : new String[]{"keep-unmatched", "delete-unmatched", "optimization"}) {
+            Runnable evaluation = () -> engine.evaluate(template, map, mode);
+            System.out.println(String.format(Locale.ROOT, "modes: %-16s %8.3f %10d",
+                    mode, measure(evaluation) / 1e6, measureAllocation(evaluation, 100)));
+        }
+        TemplateEngine parallelEngine = new TemplateEngine(ForkJoinPool.commonPool());
+        System.out.println(String.format(Locale.ROOT, "modes: %-16s %8.3f",
+                "optimization (parallel)", measure(() -> parallelEngine.evaluate(template, map, "optimization")) / 1e6));
+    }
+
+    /*
+     * countReplacements against evaluate for each matching mode on the document of benchmarkModes,
+     * compiled once so that only the matching itself is measured.
+     */
+    private static void benchmarkCount() {
+        TemplateEngine engine = new TemplateEngine();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < 89; i += 2) {
+            map.store("key" + i, "value" + i, false);
+        }
+        final CompiledTemplate compiled = engine.compile(generateDocument(2000));
+        System.out.println("count: mode, evaluate ms, count ms, evaluate bytes, count bytes");
+        for (String mode : new String[]{"keep-unmatched", "delete-unmatched", "optimization"}) {
+            Runnable evaluation = () -> compiled.evaluate(map, mode);
+            Runnable counting = () -> compiled.countReplacements(map, mode);
+            System.out.println(String.format(Locale.ROOT, "count: %-16s %8.3f %8.3f %10d %10d",
+                    mode, measure(evaluation) / 1e6, measure(counting) / 1e6,
+                    measureAllocation(evaluation, 100), measureAllocation(counting, 100)));
+        }
+    }
+
+    /*
+     * Evaluations per second with 1, 8 and 64 threads sharing one map, where every 100th operation
+     * of each thread stores a new entry instead: a ConcurrentEntryMap against an EntryMap behind a
+     * read/write lock. Every thread does the same number of operations.
+     */
+    private static void benchmarkContention() {
+        TemplateEngine engine = new TemplateEngine();
+        final String template = generateTemplate(100);
+        final int operations = 20000;
+        System.out.println("contention: threads, map, evaluations/s");
+        for (int threads : new int[]{1, 8, 64}) {
+            for (int run = 0; run < 2; run++) {
+                ConcurrentEntryMap concurrentMap = new ConcurrentEntryMap();
+                EntryMap lockedMap = new EntryMap();
+                ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+                for (int i = 0; i < 89; i += 2) {
+                    concurrentMap.store("key" + i, "value" + i, false);
+                    lockedMap.store("key" + i, "value" + i, false);
+                }
+                long concurrentNanos = runThreads(threads, (thread, i) -> {
+                    if (i % 100 == 99) {
+                        concurrentMap.store("flag" + thread + "-" + i, "on", true);
+                    }
+                    else {
+                        engine.evaluate(template, concurrentMap, "delete-unmatched");
+                    }
+                }, operations);
+                long lockedNanos = runThreads(threads, (thread, i) -> {
+                    if (i % 100 == 99) {
+                        lock.writeLock().lock();
+                        try {
+                            lockedMap.store("flag" + thread + "-" + i, "on", true);
+                        } finally {
+                            lock.writeLock().unlock();
+                        }
+                    }
+                    else {
+                        lock.readLock().lock();
+                        try {
+                            engine.evaluate(template, lockedMap, "delete-unmatched");
+                        } finally {
+                            lock.readLock().unlock();
+                        }
+                    }
+                }, operations);
+                // the first run of each thread count only warms up
+                if (run == 1) {
+                    double evaluations = threads * (operations - operations / 100);
+                    System.out.println(String.format(Locale.ROOT, "contention: %3d %-10s %12.0f",
+                            threads, "concurrent", evaluations / (concurrentNanos / 1e9)));
+                    System.out.println(String.format(Locale.ROOT, "contention: %3d %-10s %12.0f",
+                            threads, "locked", evaluations / (lockedNanos / 1e9)));
+                }
+            }
+        }
+    }
+
+    /*
+     * Heap retained per entry by an EntryMap of 2,000,000 entries, not counting the pattern and
+     * value strings themselves. Needs a heap of about 2 GB (-Xmx2g).
+     */
+    private static void benchmarkMemory() {
+        final int count = 2000000;
+        String[] patterns = new String[count];
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            patterns[i] = "key" + i;
+            values[i] = "value" + i;
+        }
+        long before = usedHeap();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < count; i++) {
+            map.store(patterns[i], values[i], i % 2 == 0);
+        }
+        long after = usedHeap();
+        System.out.println(String.format(Locale.ROOT, "memory: %d entries, %.1f bytes/entry",
+                map.getEntries().size(), (double) (after - before) / count));
+    }
+
+    /*
+     * Filling an EntryMap with 200,000 entries one store() at a time against one storeAll().
+     */
+    private static void benchmarkBulk() {
+        final int count = 200000;
+        final Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        Runnable stores = () -> {
+            EntryMap map = new EntryMap();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                map.store(entry.getKey(), entry.getValue(), false);
+            }
+        };
+        Runnable storeAll = () -> new EntryMap().storeAll(entries, false);
+        System.out.println("bulk: method, ms/200k entries, bytes/200k entries");
+        System.out.println(String.format(Locale.ROOT, "bulk: %-8s %8.3f %10d", "store", measure(stores) / 1e6, measureAllocation(stores, 10)));
+        System.out.println(String.format(Locale.ROOT, "bulk: %-8s %8.3f %10d", "storeAll", measure(storeAll) / 1e6, measureAllocation(storeAll, 10)));
+    }
+
+    /*
+     * One request against a 50,000-entry global map plus 5 request entries: copying the global
+     * map into a new EntryMap against an OverlayEntryMap over it, each then evaluating 100 templates.
+     */
+    private static void benchmarkOverlay() {
+        TemplateEngine engine = new TemplateEngine();
+        final EntryMap global = new EntryMap();
+        for (int i = 0; i < 50000; i++) {
+            global.store("global" + i, "value" + i, false);
+        }
+        for (int i = 0; i < 89; i += 2) {
+            global.store("key" + i, "value" + i, false);
+        }
+        final String template = generateTemplate(100);
+        Runnable copy = () -> {
+            EntryMap map = new EntryMap();
+            map.storeAll(global.getEntries().stream());
+            for (int i = 1; i < 10; i += 2) {
+                map.store("key" + i, "request" + i, false);
+            }
+            engine.evaluate(template, map, "delete-unmatched");
+        };
+        Runnable overlay = () -> {
+            EntryMap map = new OverlayEntryMap(global);
+            for (int i = 1; i < 10; i += 2) {
+                map.store("key" + i, "request" + i, false);
+            }
+            engine.evaluate(template, map, "delete-unmatched");
+        };
+        System.out.println("overlay: method, ms/request, bytes/request");
+        System.out.println(String.format(Locale.ROOT, "overlay: %-8s %8.3f %10d", "copy", measure(copy) / 1e6, measureAllocation(copy, 10)));
+        System.out.println(String.format(Locale.ROOT, "overlay: %-8s %8.3f %10d", "overlay", measure(overlay) / 1e6, measureAllocation(overlay, 10)));
+    }
+
+    /*
+     * Startup with a 1,000,000-entry map: reading "pattern=value" lines from a text file and
+     * storing them, against loading an EntryMapSnapshot, each followed by one evaluation.
+     * Best of 3 runs, since a single load takes long enough to time on its own.
+     */
+    private static void benchmarkSnapshot() {
+        TemplateEngine engine = new TemplateEngine();
+        final String template = generateTemplate(100);
+        try {
+            Path text = Files.createTempFile("entrymap", ".txt");
+            Path snapshot = Files.createTempFile("entrymap", ".snapshot");
+            try {
+                EntryMap map = new EntryMap();
+                try (BufferedWriter writer = Files.newBufferedWriter(text, StandardCharsets.UTF_8)) {
+                    for (int i = 0; i < 1000000; i++) {
+                        map.store("key" + i, "value" + i, false);
+                        writer.write("key" + i + "=value" + i + "\n");
+                    }
+                }
+                EntryMapSnapshot.write(map, snapshot);
+                long textNanos = Long.MAX_VALUE;
+                long snapshotNanos = Long.MAX_VALUE;
+                for (int run = 0; run < 3; run++) {
+                    long start = System.nanoTime();
+                    EntryMap loaded = new EntryMap();
+                    try (BufferedReader reader = Files.newBufferedReader(text, StandardCharsets.UTF_8)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            int separator = line.indexOf('=');
+                            loaded.store(line.substring(0, separator), line.substring(separator + 1), false);
+                        }
+                    }
+                    engine.evaluate(template, loaded, "delete-unmatched");
+                    textNanos = Math.min(textNanos, System.nanoTime() - start);
+
+                    start = System.nanoTime();
+                    engine.evaluate(template, EntryMapSnapshot.load(snapshot), "delete-unmatched");
+                    snapshotNanos = Math.min(snapshotNanos, System.nanoTime() - start);
+                }
+                System.out.println(String.format(Locale.ROOT, "snapshot: text file %10.3f ms, %d KB",
+                        textNanos / 1e6, Files.size(text) / 1024));
+                System.out.println(String.format(Locale.ROOT, "snapshot: snapshot  %10.3f ms, %d KB",
+                        snapshotNanos / 1e6, Files.size(snapshot) / 1024));
+            } finally {
+                Files.delete(text);
+                Files.delete(snapshot);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * Filling a map with 1,000 expensive values (a 100-row table each) and evaluating a template
+     * that uses 5 of them: computed up front with store() against on demand with storeLazy().
+     */
+    private static void benchmarkLazy() {
+        TemplateEngine engine = new TemplateEngine();
+        final String template = "${table1} ${table10} ${table100} ${table500} ${table999}";
+        Runnable eager = () -> {
+            EntryMap map = new EntryMap();
+            for (int i = 0; i < 1000; i++) {
+                map.store("table" + i, expensiveValue(i), false);
+            }
+            engine.evaluate(template, map, "delete-unmatched");
+        };
+        Runnable lazy = () -> {
+            EntryMap map = new EntryMap();
+            for (int i = 0; i < 1000; i++) {
+                final int table = i;
+                map.storeLazy("table" + i, () -> expensiveValue(table), false);
+            }
+            engine.evaluate(template, map, "delete-unmatched");
+        };
+        System.out.println("lazy: method, ms/evaluate");
+        System.out.println(String.format(Locale.ROOT, "lazy: %-9s %8.3f", "store", measure(eager) / 1e6));
+        System.out.println(String.format(Locale.ROOT, "lazy: %-9s %8.3f", "storeLazy", measure(lazy) / 1e6));
+    }
+
+    /*
+     * Changing one value of a long-lived 200,000-entry map: rebuilding the map with storeAll,
+     * update(), and remove() followed by store(), which moves the entry to the end. The times are
+     * per change and should not grow with the map for update and remove.
+     */
+    private static void benchmarkUpdate() {
+        final int count = 200000;
+        final int changes = 1000;
+        final Map<String, String> entries = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            entries.put("key" + i, "value" + i);
+        }
+        final EntryMap map = new EntryMap();
+        map.storeAll(entries, false);
+        final int[] round = new int[1];
+        Runnable rebuild = () -> {
+            entries.put("key" + round[0] % count, "changed" + round[0]++);
+            new EntryMap().storeAll(entries, false);
+        };
+        Runnable update = () -> {
+            for (int i = 0; i < changes; i++) {
+                String key = "key" + i * 97 % count;
+                map.update(key, entries.get(key), "changed", false);
+                map.update(key, "changed", entries.get(key), false);
+            }
+        };
+        Runnable removeAndStore = () -> {
+            for (int i = 0; i < changes; i++) {
+                String key = "key" + i * 97 % count;
+                map.remove(key, entries.get(key), false);
+                map.store(key, entries.get(key), false);
+            }
+        };
+        System.out.println("update: method, us/change");
+        System.out.println(String.format(Locale.ROOT, "update: %-14s %10.3f", "rebuild", measure(rebuild) / 1e3));
+        System.out.println(String.format(Locale.ROOT, "update: %-14s %10.3f", "update", measure(update) / 1e3 / (2 * changes)));
+        System.out.println(String.format(Locale.ROOT, "update: %-14s %10.3f", "remove+store", measure(removeAndStore) / 1e3 / changes));
+    }
+
+    /*
+     * Throughput of one shared TemplateEngine and FrozenEntryMap on 1 thread up to one per
+     * available core, each thread evaluating its share of the same 2,000 evaluations of a
+     * 100-template document. Evaluations/s should grow with the threads up to the core count.
+     */
+    private static void benchmarkThreads() {
+        TemplateEngine engine = new TemplateEngine();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < 89; i += 2) {
+            map.store("key" + i, "value" + i, false);
+        }
+        final EntryMap frozen = map.freeze();
+        final String template = generateTemplate(100);
+        final int evaluations = 2000;
+        int cores = Runtime.getRuntime().availableProcessors();
+        System.out.println("threads: threads, evaluations/s (" + cores + " cores)");
+        for (int threads = 1; threads <= cores; threads = threads < cores ? Math.min(threads * 2, cores) : cores + 1) {
+            final int perThread = evaluations / threads;
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < WARMUP_RUNS + MEASURED_RUNS; run++) {
+                long nanos = runThreads(threads, (thread, i) -> engine.evaluate(template, frozen, "delete-unmatched"), perThread);
+                if (run >= WARMUP_RUNS) {
+                    best = Math.min(best, nanos);
+                }
+            }
+            System.out.println(String.format(Locale.ROOT, "threads: %3d %12.0f", threads, threads * perThread / (best / 1e9)));
+        }
+    }
+
+    /*
+     * 20,000 distinct template strings against one map: an evaluate() call for each one after the
+     * other against a single evaluateAll() call, which should be faster by about the core count.
+     */
+    private static void benchmarkBatch() {
+        TemplateEngine engine = new TemplateEngine();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < 89; i += 2) {
+            map.store("key" + i, "value" + i, false);
+        }
+        final List<String> templates = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            templates.add("Dear ${key" + i % 89 + "}, ref " + i + ": ${key" + i % 13 + "} ${KEY" + i % 7 + "}");
+        }
+        Runnable loop = () -> {
+            for (String template : templates) {
+                engine.evaluate(template, map, "delete-unmatched");
+            }
+        };
+        Runnable batch = () -> engine.evaluateAll(templates, map, "delete-unmatched");
+        System.out.println("batch: method, ms/20k templates (" + Runtime.getRuntime().availableProcessors() + " cores)");
+        System.out.println(String.format(Locale.ROOT, "batch: %-11s %8.3f", "evaluate", measure(loop) / 1e6));
+        System.out.println(String.format(Locale.ROOT, "batch: %-11s %8.3f", "evaluateAll", measure(batch) / 1e6));
+    }
+
+    /*
+     * One letter template with 8 templates rendered for 50,000 customer records of 20 fields:
+     * an EntryMap built and evaluate() called per record, against mailMerge() of the records as
+     * maps and as RecordColumns. Bytes are those allocated per document, the document included.
+     */
+    private static void benchmarkMerge() {
+        TemplateEngine engine = new TemplateEngine();
+        final String template = "Dear ${title} ${first name} ${surname},\n\nYour order ${order} of ${date} "
+                + "has shipped to ${city}, ${country}. Total: ${total}.\n";
+        final List<Map<String, String>> records = new ArrayList<>();
+        for (int i = 0; i < 50000; i++) {
+            Map<String, String> record = new LinkedHashMap<>();
+            record.put("title", i % 2 == 0 ? "Mr" : "Ms");
+            record.put("first name", "Name" + i);
+            record.put("surname", "Surname" + i);
+            record.put("order", "A" + i);
+            record.put("date", "2024-01-" + (i % 28 + 1));
+            record.put("city", "City" + i % 100);
+            record.put("country", "Country" + i % 10);
+            record.put("total", String.valueOf(i * 3));
+            for (int field = 0; field < 12; field++) {
+                record.put("field" + field, "value" + field);
+            }
+            records.add(record);
+        }
+        Runnable perRecord = () -> {
+            for (Map<String, String> record : records) {
+                EntryMap map = new EntryMap();
+                map.storeAll(record, false);
+                engine.evaluate(template, map, "delete-unmatched");
+            }
+        };
+        Runnable merge = () -> engine.mailMerge(template, records.stream(), false, "delete-unmatched").forEach(document -> { });
+        String[] patterns = records.get(0).keySet().toArray(new String[0]);
+        String[][] columns = new String[patterns.length][records.size()];
+        for (int row = 0; row < records.size(); row++) {
+            for (int column = 0; column < patterns.length; column++) {
+                columns[column][row] = records.get(row).get(patterns[column]);
+            }
+        }
+        final RecordColumns recordColumns = new RecordColumns(patterns, columns, false);
+        Runnable mergeColumns = () -> engine.mailMerge(template, recordColumns, "delete-unmatched").forEach(document -> { });
+        System.out.println("merge: method, documents/s, bytes/document");
+        System.out.println(String.format(Locale.ROOT, "merge: %-10s %12.0f %8d", "evaluate",
+                records.size() / (measure(perRecord) / 1e9), measureAllocation(perRecord, 2) / records.size()));
+        System.out.println(String.format(Locale.ROOT, "merge: %-10s %12.0f %8d", "mailMerge",
+                records.size() / (measure(merge) / 1e9), measureAllocation(merge, 2) / records.size()));
+        System.out.println(String.format(Locale.ROOT, "merge: %-10s %12.0f %8d", "columns",
+                records.size() / (measure(mergeColumns) / 1e9), measureAllocation(mergeColumns, 2) / records.size()));
+    }
+
+    /*
+     * CsvMailMerge.writeFile of CSV files of 100,000 and 400,000 customer rows into one output
+     * file. Rows/s should stay flat as the file grows. Runs are few since every one reads and
+     * writes the whole file.
+     */
+    private static void benchmarkCsv() {
+        CompiledTemplate template = new TemplateEngine().compile("Dear ${title} ${first name} ${surname},\n\nYour order ${order} "
+                + "has shipped to ${city}. Total: ${total}.\n");
+        CsvMailMerge merge = new CsvMailMerge(template, CsvMailMerge.CSV, false, "delete-unmatched");
+        System.out.println("csv: rows, ms, rows/s, input MB/s");
+        try {
+            Path input = Files.createTempFile("benchmark", ".csv");
+            Path output = Files.createTempFile("benchmark", ".txt");
+            try {
+                for (int rows : new int[]{100000, 400000}) {
+                    try (BufferedWriter writer = Files.newBufferedWriter(input, StandardCharsets.UTF_8)) {
+                        writer.write("title,first name,surname,order,city,total,notes\n");
+                        for (int i = 0; i < rows; i++) {
+                            writer.write((i % 2 == 0 ? "Mr" : "Ms") + ",Name" + i + ",Surname" + i + ",A" + i + ",City" + i % 100
+                                    + "," + i * 3 + ",\"note, \"\"quoted\"\"\"\n");
+                        }
+                    }
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < 4; run++) {
+                        long start = System.nanoTime();
+                        merge.writeFile(input, output, "\f");
+                        best = run == 0 ? best : Math.min(best, System.nanoTime() - start);
+                    }
+                    System.out.println(String.format(Locale.ROOT, "csv: %7d %8.1f %10.0f %8.1f", rows, best / 1e6,
+                            rows / (best / 1e9), Files.size(input) / 1e6 / (best / 1e9)));
+                }
+            } finally {
+                Files.delete(input);
+                Files.delete(output);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /*
+     * A document of 100,000 templates, about 2 MB once instanced, written to a Writer: the String
+     * returned by evaluate() written out, against evaluate() writing to the Writer itself. Bytes
+     * are those allocated per evaluation; the Writer discards what it is given.
+     */
+    private static void benchmarkAppendable() {
+        TemplateEngine engine = new TemplateEngine();
+        EntryMap map = new EntryMap();
+        for (int i = 0; i < 89; i += 2) {
+            map.store("key" + i, "a somewhat longer value " + i, false);
+        }
+        final CompiledTemplate template = engine.compile(generateTemplate(100000));
+        final Writer sink = new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void write(String text, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Runnable viaString = () -> {
+            try {
+                sink.write(template.evaluate(map, "keep-unmatched"));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        Runnable toWriter = () -> {
+            try {
+                template.evaluate(map, "keep-unmatched", sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+        System.out.println("appendable: method, ms/evaluate, bytes/evaluate");
+        System.out.println(String.format(Locale.ROOT, "appendable: %-8s %8.3f %10d", "String", measure(viaString) / 1e6, measureAllocation(viaString, 10)));
+        System.out.println(String.format(Locale.ROOT, "appendable: %-8s %8.3f %10d", "Writer", measure(toWriter) / 1e6, measureAllocation(toWriter, 10)));
+    }
+
+    private static String expensiveValue(int table) {
+        StringBuilder builder = new StringBuilder();
+        for (int row = 0; row < 100; row++) {
+            builder.append(String.format(Locale.ROOT, "| %5d | %10.2f |%n", row, table * 1.5 + row));
+        }
+        return builder.toString();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    interface Operation {
+        void run(int thread, int index);
+    }
+
+    // wall-clock time for threads threads to each run operation operations times, started together
+    static long runThreads(int threads, Operation operation, int operations) {
+        CyclicBarrier start = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    throw new IllegalStateException(e);
+                }
+                for (int i = 0; i < operations; i++) {
+                    operation.run(thread, i);
+                }
+            });
+            workers[t].start();
+        }
+        try {
+            start.await();
+            long begin = System.nanoTime();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            return System.nanoTime() - begin;
+        } catch (InterruptedException | BrokenBarrierException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // count templates as in generateTemplate, padded with ~100 characters of text each
+    static String generateDocument(int count) {
+        StringBuilder builder = new StringBuilder();
+        String template = generateTemplate(count);
+        for (int i = 0; i < template.length(); i++) {
+            builder.append(template.charAt(i));
+            if (template.charAt(i) == ' ' && template.charAt(i - 1) == '}') {
+                builder.append("Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore. ");
+            }
+        }
+        return builder.toString();
+    }
+
+    // count templates with varying key lengths; every fourth one is nested inside a wider template
+    static String generateTemplate(int count) {
+        StringBuilder builder = new StringBuilder();
+        int i = 0;
+        while (i < count) {
+            if (i % 4 == 3 && i + 1 < count) {
+                builder.append("${outer").append(i).append(" ${key").append(i % 89).append("}} ");
+                i += 2;
+            }
+            else {
+                builder.append("text ${key").append(i % 89).append("} ");
+                i++;
+            }
+        }
+        return builder.toString();
+    }
+
+    static long measure(Runnable task) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            task.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            task.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    static long measureAllocation(Runnable task, int runs) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < runs; i++) {
+            task.run();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < runs; i++) {
+            task.run();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / runs;
+    }
+}
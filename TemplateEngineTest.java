@@ -1,7 +1,38 @@
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.junit.Test;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import st.CompiledTemplate;
+import st.ConcurrentEntryMap;
+import st.CsvMailMerge;
 import st.EntryMap;
+import st.EntryMapSnapshot;
+import st.FrozenEntryMap;
+import st.OverlayEntryMap;
+import st.RecordColumns;
 import st.TemplateEngine;
 
 public class TemplateEngineTest {
@@ -763,4 +794,862 @@ public class TemplateEngineTest {
 		String result = engine.evaluate("${${}}", map, "delete-unmatched");
 		assertEquals("", result);
 	}
+
+	@Test
+	public void testCompiledTemplateReusedAcrossMaps() {
+		map.store("name", "Adam", false);
+		map.store("age", "29", false);
+		map2.store("name", "Eve", false);
+
+		CompiledTemplate compiled = engine.compile("Hello ${name}, is your age ${age ${symbol}}");
+		assertEquals("Hello Adam, is your age 29", compiled.evaluate(map, "delete-unmatched"));
+		assertEquals("Hello Eve, is your age ", compiled.evaluate(map2, "delete-unmatched"));
+		assertEquals("Hello Adam, is your age 29", compiled.evaluate(map, "delete-unmatched"));
+	}
+
+	@Test
+	public void testCompiledTemplateMatchesEvaluate() {
+		map.store("Mr Worf", "Delete won", false);
+		map.store("Klingons", "Worf", false);
+		map.store("Aliens", "Klingons", false);
+		map.store("Aliens ${ space }", "Vulcans", false);
+
+		String template = "${Mr ${${Aliens ${ space }}}} and ${3${${1}${2}}}";
+		CompiledTemplate compiled = engine.compile(template);
+		for (String mode : new String[]{"keep-unmatched", "delete-unmatched", "optimization", null}) {
+			assertEquals(engine.evaluate(template, map, mode), compiled.evaluate(map, mode));
+		}
+	}
+
+	@Test
+	public void testCompiledTemplateNullOrEmpty() {
+		assertNull(engine.compile(null).evaluate(map, "keep-unmatched"));
+		assertEquals("", engine.compile("").evaluate(map, "keep-unmatched"));
+		assertEquals("${name}", engine.compile("${name}").evaluate(null, "delete-unmatched"));
+	}
+
+	@Test
+	public void testFirstStoredEntryWinsAcrossCaseSensitivity() {
+		map.store("first name", "sensitive", true);
+		map.store("FirstName", "insensitive", false);
+		map2.store("FIRST name", "insensitive", null);
+		map2.store("firstname", "sensitive", true);
+
+		assertEquals("sensitive insensitive", engine.evaluate("${firstname} ${FIRSTNAME}", map, "keep-unmatched"));
+		assertEquals("insensitive insensitive", engine.evaluate("${firstname} ${FIRSTNAME}", map2, "keep-unmatched"));
+	}
+
+	@Test
+	public void testCaseInsensitiveMatchOutsideAscii() {
+		map.store("\u00e4pfel und birnen", "fruit", false);
+		map.store("\u00c9T\u00c9", "summer", true);
+
+		String result = engine.evaluate("${\u00c4PFEL UND\tBIRNEN} ${\u00e9t\u00e9} ${\u00c9 T \u00c9}", map, "keep-unmatched");
+		assertEquals("fruit ${\u00e9t\u00e9} summer", result);
+	}
+
+	@Test
+	public void testParallelOptimizationMatchesSequential() {
+		TemplateEngine parallelEngine = new TemplateEngine(ForkJoinPool.commonPool());
+		map.store("Mr Worf", "Delete won", false);
+		map.store("Klingons", "Worf", false);
+		map.store("Aliens", "Klingons", false);
+		map.store("Aliens ${ space }", "Vulcans", false);
+		map2.store("name2", "Maddie", false);
+		map2.store("name Maddie ${nothing}", "Gina", false);
+
+		assertEquals("Delete won", parallelEngine.evaluate("${Mr ${${Aliens ${ space }}}}", map, "optimization"));
+		assertEquals("Hello Gina", parallelEngine.evaluate("Hello ${name ${name2} ${nothing}}", map2, "optimization"));
+	}
+
+	@Test
+	public void testCountReplacementsMatchesEvaluate() {
+		map.store("Mr Worf", "Delete won", false);
+		map.store("Klingons", "Worf", false);
+		map.store("Aliens", "Klingons", false);
+		map.store("Aliens ${ space }", "Vulcans", false);
+		String template = "${Mr ${${Aliens ${ space }}}} and ${nothing}";
+
+		assertEquals(1, engine.countReplacements(template, map, "keep-unmatched"));
+		assertEquals(3, engine.countReplacements(template, map, "delete-unmatched"));
+		assertEquals(3, engine.countReplacements(template, map, "optimization"));
+		assertEquals(3, engine.countReplacements(template, map, "invalid"));
+		assertEquals(0, engine.countReplacements(null, map, "optimization"));
+		assertEquals(0, engine.countReplacements(template, null, "optimization"));
+
+		// the unclosed ${ leaves the templates inside it outermost
+		String unclosed = "${ ${Mr ${Klingons}} ${nothing}";
+		assertEquals("${ Delete won ${nothing}", engine.evaluate(unclosed, map, "keep-unmatched"));
+		assertEquals(2, engine.countReplacements(unclosed, map, "keep-unmatched"));
+		assertEquals(2, engine.countReplacements(unclosed, map, "optimization"));
+	}
+
+	@Test
+	public void testFrozenEntryMapEvaluatesLikeSource() {
+		map.store("name", "Adam", false);
+		map.store("NAME", "Eve", true);
+		map.store("surname", "Dykes", null);
+		FrozenEntryMap frozen = map.freeze();
+		map.store("age", "29", false);
+
+		String template = "Hello ${name} ${NAME} ${surname}, age ${age}";
+		assertEquals("Hello Adam Adam Dykes, age ", engine.evaluate(template, frozen, "delete-unmatched"));
+		assertEquals(3, frozen.getEntries().size());
+		assertSame(frozen, frozen.freeze());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testFrozenEntryMapRejectsStore() {
+		map.store("name", "Adam", false);
+		map.freeze().store("surname", "Dykes", false);
+	}
+
+	@Test
+	public void testFrozenEntryMapSharedAcrossThreads() throws Exception {
+		for (int i = 0; i < 100; i++) {
+			map.store("key" + i, "value" + i, i % 2 == 0);
+		}
+		FrozenEntryMap frozen = map.freeze();
+		StringBuilder template = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			template.append("${KEY").append(i).append("} ");
+			expected.append(i % 2 == 0 ? "" : "value" + i).append(" ");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 64; i++) {
+				results.add(executor.submit(() -> engine.evaluate(template.toString(), frozen, "delete-unmatched")));
+			}
+			for (Future<String> result : results) {
+				assertEquals(expected.toString(), result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testConcurrentEntryMapReadsWhileStoring() throws Exception {
+		ConcurrentEntryMap concurrentMap = new ConcurrentEntryMap();
+		StringBuilder template = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			template.append("${key").append(i).append("}");
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Future<?> writer = executor.submit(() -> {
+				for (int i = 0; i < 200; i++) {
+					concurrentMap.store("key" + i, "v" + i + ",", false);
+				}
+			});
+			List<Future<String>> results = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				results.add(executor.submit(() -> engine.evaluate(template.toString(), concurrentMap, "delete-unmatched")));
+			}
+			writer.get();
+			// entries are published in store order, so every evaluation sees some prefix of them
+			for (Future<String> result : results) {
+				String instanced = result.get();
+				int stored = instanced.isEmpty() ? 0 : instanced.split(",").length;
+				StringBuilder expected = new StringBuilder();
+				for (int i = 0; i < stored; i++) {
+					expected.append("v").append(i).append(",");
+				}
+				assertEquals(expected.toString(), instanced);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(200, concurrentMap.getEntries().size());
+	}
+
+	@Test
+	public void testConcurrentEntryMapKeepsEntriesUnique() throws Exception {
+		ConcurrentEntryMap concurrentMap = new ConcurrentEntryMap();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> stores = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				stores.add(executor.submit(() -> {
+					for (int j = 0; j < 50; j++) {
+						concurrentMap.store("key" + j, "value" + j, j % 2 == 0);
+					}
+				}));
+			}
+			for (Future<?> store : stores) {
+				store.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(50, concurrentMap.getEntries().size());
+		assertEquals("value1 value2", engine.evaluate("${KEY1} ${key2}", concurrentMap, "delete-unmatched"));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testConcurrentEntryMapRejectsInvalidEntry() {
+		new ConcurrentEntryMap().store("", "value", false);
+	}
+
+	@Test
+	public void testEntryMapKeepsOrderAndUniquenessWhenGrowing() {
+		for (int round = 0; round < 2; round++) {
+			for (int i = 0; i < 1000; i++) {
+				map.store("key" + i, "value" + i, i % 3 == 0);
+			}
+		}
+		map.store("key1", "other", false);
+
+		List<EntryMap.Entry> entries = map.getEntries();
+		assertEquals(1001, entries.size());
+		assertFalse(entries.get(1).equals(entries.get(1000)));
+		assertEquals(entries.get(999), map.getEntries().get(999));
+		assertEquals("value1 value999", engine.evaluate("${KEY1} ${key999}", map, "delete-unmatched"));
+	}
+
+	@Test
+	public void testStoreAllFromMapKeepsOrderAndUniqueness() {
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("name", "Adam");
+		entries.put("NAME", "Eve");
+		entries.put("surname", "Dykes");
+		map.store("name", "Adam", false);
+		map.storeAll(entries, false);
+
+		assertEquals(3, map.getEntries().size());
+		assertEquals("Adam Adam Dykes", engine.evaluate("${name} ${NAME} ${surname}", map, "delete-unmatched"));
+	}
+
+	@Test
+	public void testStoreAllFromStreamAndProperties() {
+		map.storeAll(Stream.of(new EntryMap.Entry("name", "Adam", true), new EntryMap.Entry("NAME", "Eve", null)));
+		Properties properties = new Properties();
+		properties.setProperty("surname", "Dykes");
+		properties.setProperty("age", "29");
+		map.storeAll(properties, null);
+
+		assertEquals(4, map.getEntries().size());
+		assertEquals("Adam Eve Dykes 29", engine.evaluate("${name} ${Name} ${surname} ${age}", map, "delete-unmatched"));
+	}
+
+	@Test
+	public void testStoreAllRejectsInvalidEntryWithoutStoringAny() {
+		Map<String, String> entries = new LinkedHashMap<>();
+		entries.put("name", "Adam");
+		entries.put("", "empty");
+		try {
+			map.storeAll(entries, false);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals(0, map.getEntries().size());
+		}
+		try {
+			map.storeAll(Stream.of(new EntryMap.Entry("name", null, false)));
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals(0, map.getEntries().size());
+		}
+	}
+
+	@Test
+	public void testOverlayEntryMapPutsOwnEntriesFirst() {
+		map.store("name", "Adam", false);
+		map.store("surname", "Dykes", false);
+		OverlayEntryMap overlay = new OverlayEntryMap(map);
+		overlay.store("NAME", "Eve", true);
+		overlay.store("name", "Adam", false);
+
+		assertEquals("Eve Adam Dykes", engine.evaluate("${NAME} ${name} ${surname}", overlay, "delete-unmatched"));
+		assertEquals("Adam Adam Dykes", engine.evaluate("${NAME} ${name} ${surname}", map, "delete-unmatched"));
+		assertEquals(3, overlay.getEntries().size());
+		assertEquals(2, map.getEntries().size());
+		assertEquals("Eve Adam Dykes", engine.evaluate("${NAME} ${name} ${surname}", overlay.freeze(), "delete-unmatched"));
+	}
+
+	@Test
+	public void testOverlayEntryMapParentFirst() {
+		map.store("name", "Adam", false);
+		OverlayEntryMap overlay = new OverlayEntryMap(map, OverlayEntryMap.Precedence.PARENT_FIRST);
+		overlay.store("NAME", "Eve", true);
+		overlay.store("surname", "Dykes", false);
+		map.store("age", "29", false);
+
+		assertEquals("Adam Dykes 29", engine.evaluate("${NAME} ${surname} ${age}", overlay, "delete-unmatched"));
+	}
+
+	@Test
+	public void testEntryMapSnapshotRoundTrip() throws Exception {
+		map.store("name", "Adam", false);
+		map.store("NAME", "Eve", true);
+		map.store("\u00e4pfel und birnen", "fruit \ud83c\udf4e", false);
+		map.store("lone", "half \ud83c", true);
+		map.store("name", "Adam", false);
+		String template = "${name} ${NAME} ${Name} ${\u00c4PFEL UND BIRNEN} ${lone} ${LONE} ${missing}";
+		Path file = Files.createTempFile("entrymap", ".snapshot");
+		try {
+			EntryMapSnapshot.write(map, file);
+			FrozenEntryMap loaded = EntryMapSnapshot.load(file);
+
+			assertEquals(4, loaded.getEntries().size());
+			for (String mode : new String[]{"keep-unmatched", "delete-unmatched", "optimization"}) {
+				assertEquals(engine.evaluate(template, map, mode), engine.evaluate(template, loaded, mode));
+			}
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testEntryMapSnapshotFindsLazyEntriesByValue() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			map.storeLazy("name" + i, () -> "v", false);
+		}
+		Path file = Files.createTempFile("entrymap", ".snapshot");
+		try {
+			EntryMapSnapshot.write(map, file);
+			FrozenEntryMap loaded = EntryMapSnapshot.load(file);
+
+			// the dedupe table is package-private, and no public method reads it on a loaded map yet
+			Method getTable = EntryMap.class.getDeclaredMethod("getTable");
+			getTable.setAccessible(true);
+			Object table = getTable.invoke(loaded);
+			Method contains = table.getClass().getDeclaredMethod("contains", String.class, String.class, boolean.class);
+			contains.setAccessible(true);
+			for (int i = 0; i < 20; i++) {
+				assertEquals(true, contains.invoke(table, "name" + i, "v", false));
+			}
+			assertEquals(false, contains.invoke(table, "name0", "w", false));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testEntryMapSnapshotLoadedInOtherLocale() throws Exception {
+		map.store("TITLE", "Mr", false);
+		Path file = Files.createTempFile("entrymap", ".snapshot");
+		Locale locale = Locale.getDefault();
+		try {
+			EntryMapSnapshot.write(map, file);
+			Locale.setDefault(new Locale("tr", "TR"));
+			FrozenEntryMap loaded = EntryMapSnapshot.load(file);
+
+			// Turkish lower-cases "TITLE" to "t\u0131tle", which "title" does not match
+			assertEquals("${title} Mr", engine.evaluate("${title} ${TITLE}", loaded, "keep-unmatched"));
+		} finally {
+			Locale.setDefault(locale);
+			Files.delete(file);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testEntryMapSnapshotRejectsOtherFiles() throws Exception {
+		Path file = Files.createTempFile("entrymap", ".txt");
+		try {
+			Files.write(file, "name=Adam".getBytes(StandardCharsets.UTF_8));
+			EntryMapSnapshot.load(file);
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testLazyValueOnlyComputedWhenMatched() {
+		AtomicInteger totalCalls = new AtomicInteger();
+		AtomicInteger unusedCalls = new AtomicInteger();
+		map.storeLazy("total", () -> "\u00a3" + totalCalls.incrementAndGet(), false);
+		map.storeLazy("unused", () -> "never" + unusedCalls.incrementAndGet(), false);
+		map.store("name", "Adam", false);
+
+		assertEquals("Adam owes \u00a31", engine.evaluate("${name} owes ${TOTAL}", map, "optimization"));
+		assertEquals("\u00a31 \u00a31", engine.evaluate("${total} ${total}", map.freeze(), "keep-unmatched"));
+		assertEquals(1, totalCalls.get());
+		assertEquals(0, unusedCalls.get());
+	}
+
+	@Test
+	public void testLazyValueUniqueBySupplier() {
+		Supplier<String> value = () -> "Adam";
+		map.storeLazy("name", value, false);
+		map.storeLazy("name", value, null);
+		map.storeLazy("name", () -> "Eve", false);
+		map.store("name", "Adam", false);
+
+		assertEquals(3, map.getEntries().size());
+		assertEquals("Adam", engine.evaluate("${name}", map, "delete-unmatched"));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testLazyValueReturningNull() {
+		map.storeLazy("name", () -> null, false);
+		engine.evaluate("${name}", map, "delete-unmatched");
+	}
+
+	@Test
+	public void testLazyValueInConcurrentEntryMap() {
+		ConcurrentEntryMap concurrentMap = new ConcurrentEntryMap();
+		AtomicInteger calls = new AtomicInteger();
+		concurrentMap.storeLazy("name", () -> "Adam" + calls.incrementAndGet(), false);
+		concurrentMap.store("surname", "Dykes", false);
+
+		assertEquals("Adam1 Dykes", engine.evaluate("${name} ${surname}", concurrentMap, "delete-unmatched"));
+		assertEquals("Adam1 Dykes", engine.evaluate("${name} ${surname}", concurrentMap, "delete-unmatched"));
+		assertEquals(1, calls.get());
+	}
+
+	@Test
+	public void testUpdateKeepsEntryInPlace() {
+		map.store("name", "Adam", false);
+		map.store("NAME", "Eve", true);
+		map.store("surname", "Dykes", false);
+
+		assertTrue(map.update("name", "Adam", "Bob", null));
+		assertFalse(map.update("name", "Adam", "Carl", false));
+		assertEquals("Bob Dykes", engine.evaluate("${NAME} ${surname}", map, "delete-unmatched"));
+		assertEquals(new EntryMap.Entry("name", "Bob", false), map.getEntries().get(0));
+		assertEquals(3, map.getEntries().size());
+	}
+
+	@Test
+	public void testUpdateToStoredValueKeepsEarlierEntry() {
+		map.store("name", "Adam", false);
+		map.store("NAME", "Eve", true);
+		map.store("name", "Bob", false);
+
+		assertTrue(map.update("name", "Bob", "Adam", false));
+		assertEquals(2, map.getEntries().size());
+		assertEquals(new EntryMap.Entry("name", "Adam", false), map.getEntries().get(0));
+		assertTrue(map.update("name", "Adam", "Eve", false));
+		assertEquals("Eve", engine.evaluate("${NAME}", map, "delete-unmatched"));
+	}
+
+	@Test
+	public void testRemoveFallsBackToNextEquivalentEntry() {
+		map.store("name", "Adam", false);
+		map.store("NAME", "Eve", true);
+		map.store(" Name ", "Bob", false);
+
+		assertTrue(map.remove("name", "Adam", false));
+		assertFalse(map.remove("name", "Adam", false));
+		assertEquals("Eve Bob", engine.evaluate("${NAME} ${name}", map, "delete-unmatched"));
+		assertTrue(map.remove("NAME", "Eve", true));
+		assertEquals("Bob Bob", engine.evaluate("${NAME} ${name}", map, "delete-unmatched"));
+		assertTrue(map.remove(" Name ", "Bob", null));
+		assertEquals("${NAME}", engine.evaluate("${NAME}", map, "keep-unmatched"));
+		map.store("name", "Adam", false);
+		assertEquals("Adam", engine.evaluate("${NAME}", map, "delete-unmatched"));
+	}
+
+	@Test
+	public void testUpdateAndRemoveMatchRebuiltMap() {
+		Random random = new Random(42);
+		List<EntryMap.Entry> expected = new ArrayList<>();
+		for (int step = 0; step < 5000; step++) {
+			String pattern = (random.nextBoolean() ? "key" : "KEY") + random.nextInt(20);
+			String value = "value" + random.nextInt(5);
+			boolean caseSensitive = random.nextBoolean();
+			EntryMap.Entry entry = new EntryMap.Entry(pattern, value, caseSensitive);
+			int operation = random.nextInt(3);
+			if (operation == 0) {
+				map.store(pattern, value, caseSensitive);
+				if (!expected.contains(entry)) {
+					expected.add(entry);
+				}
+			} else if (operation == 1) {
+				String newValue = "value" + random.nextInt(5);
+				EntryMap.Entry updated = new EntryMap.Entry(pattern, newValue, caseSensitive);
+				int position = expected.indexOf(entry);
+				int duplicate = expected.indexOf(updated);
+				assertEquals(position >= 0, map.update(pattern, value, newValue, caseSensitive));
+				if (position >= 0 && duplicate < 0) {
+					expected.set(position, updated);
+				} else if (position >= 0 && duplicate != position) {
+					expected.remove(Math.max(position, duplicate));
+					expected.set(Math.min(position, duplicate), updated);
+				}
+			} else {
+				assertEquals(expected.remove(entry), map.remove(pattern, value, caseSensitive));
+			}
+
+			if (step % 100 == 0) {
+				EntryMap rebuilt = new EntryMap();
+				for (EntryMap.Entry stored : expected) {
+					rebuilt.store(stored.getPattern(), stored.getValue(), stored.getCaseSensitive());
+				}
+				assertEquals(expected, map.getEntries());
+				for (int i = 0; i < 20; i++) {
+					String template = "${key" + i + "} ${KEY" + i + "} ${Key" + i + "}";
+					assertEquals(engine.evaluate(template, rebuilt, "keep-unmatched"), engine.evaluate(template, map, "keep-unmatched"));
+					assertEquals(engine.evaluate(template, rebuilt, "keep-unmatched"), engine.evaluate(template, map.freeze(), "keep-unmatched"));
+				}
+			}
+		}
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testFrozenEntryMapRejectsRemove() {
+		map.store("name", "Adam", false);
+		map.freeze().remove("name", "Adam", false);
+	}
+
+	@Test
+	public void testUpdateAndRemoveInConcurrentEntryMap() {
+		ConcurrentEntryMap concurrentMap = new ConcurrentEntryMap();
+		concurrentMap.store("name", "Adam", false);
+		concurrentMap.store("surname", "Dykes", false);
+		FrozenEntryMap before = concurrentMap.freeze();
+
+		assertTrue(concurrentMap.update("name", "Adam", "Eve", false));
+		assertTrue(concurrentMap.remove("surname", "Dykes", false));
+		assertFalse(concurrentMap.remove("surname", "Dykes", false));
+		assertEquals("Eve ", engine.evaluate("${name} ${surname}", concurrentMap, "delete-unmatched"));
+		assertEquals("Adam Dykes", engine.evaluate("${name} ${surname}", before, "delete-unmatched"));
+	}
+
+	@Test
+	public void testEngineSharedAcrossThreadsMatchesSingleThreaded() throws Exception {
+		Random random = new Random(7);
+		String[] modes = {"keep-unmatched", "delete-unmatched", "optimization"};
+		for (int i = 0; i < 50; i++) {
+			map.store("key" + i, i % 5 == 0 ? "${key" + (i + 1) + "}" : "value" + i, i % 3 == 0);
+		}
+		FrozenEntryMap frozen = map.freeze();
+		TemplateEngine parallelEngine = new TemplateEngine(ForkJoinPool.commonPool());
+		List<String> templates = new ArrayList<>();
+		for (int t = 0; t < 40; t++) {
+			StringBuilder template = new StringBuilder();
+			for (int part = 0; part < 30; part++) {
+				int nesting = random.nextInt(3);
+				for (int level = 0; level < nesting; level++) {
+					template.append("${KEY");
+				}
+				template.append("${key").append(random.nextInt(60)).append(random.nextBoolean() ? "}" : "} ");
+				for (int level = 0; level < nesting; level++) {
+					template.append(random.nextInt(5)).append("}");
+				}
+			}
+			templates.add(template.toString());
+		}
+		List<CompiledTemplate> compiled = new ArrayList<>();
+		List<String> expected = new ArrayList<>();
+		for (String template : templates) {
+			compiled.add(engine.compile(template));
+			for (String mode : modes) {
+				expected.add(engine.evaluate(template, map, mode));
+			}
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int task = 0; task < 200; task++) {
+				final int seed = task;
+				results.add(executor.submit(() -> {
+					Random order = new Random(seed);
+					for (int i = 0; i < 100; i++) {
+						int t = order.nextInt(templates.size());
+						int m = order.nextInt(modes.length);
+						String want = expected.get(t * modes.length + m);
+						if (!want.equals(engine.evaluate(templates.get(t), map, modes[m]))
+								|| !want.equals(compiled.get(t).evaluate(frozen, modes[m]))
+								|| !want.equals(parallelEngine.evaluate(templates.get(t), frozen, modes[m]))) {
+							return false;
+						}
+					}
+					return true;
+				}));
+			}
+			for (Future<Boolean> result : results) {
+				assertTrue(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testEvaluateAllKeepsInputOrder() {
+		for (int i = 0; i < 100; i++) {
+			map.store("key" + i, "value" + i, i % 2 == 0);
+		}
+		List<String> templates = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			templates.add("${KEY" + i % 120 + "} ${key" + (i * 7) % 120 + "} #" + i);
+		}
+		templates.add(null);
+		templates.add("");
+
+		List<String> results = engine.evaluateAll(templates, map, "optimization");
+		assertEquals(templates.size(), results.size());
+		for (int i = 0; i < templates.size(); i++) {
+			assertEquals(engine.evaluate(templates.get(i), map, "optimization"), results.get(i));
+		}
+		assertEquals(Arrays.asList("${name}", null), engine.evaluateAll(Arrays.asList("${name}", null), null, "keep-unmatched"));
+		assertTrue(engine.evaluateAll(new ArrayList<>(), map, "keep-unmatched").isEmpty());
+	}
+
+	@Test
+	public void testMailMergeMatchesEvaluatePerRecord() {
+		List<Map<String, String>> records = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			Map<String, String> record = new LinkedHashMap<>();
+			record.put("name", "Adam" + i);
+			record.put("NAME", "Eve" + i);
+			record.put(" surname ", "Dykes");
+			record.put("unused", "x");
+			record.put("title" + i % 3, "name");
+			if (i % 2 == 0) {
+				record.put("  ", "blank");
+			}
+			records.add(record);
+		}
+		String[] templates = {"Dear ${NAME} ${Sur Name}, ${name} ${} ${ } ${Title1}", "Dear ${${title1}} ${surname}", "Dear", ""};
+		for (String template : templates) {
+			for (Boolean caseSensitive : new Boolean[]{true, false, null}) {
+				for (String mode : new String[]{"keep-unmatched", "delete-unmatched", "optimization", null}) {
+					List<String> merged = engine.mailMerge(template, records.stream(), caseSensitive, mode).collect(Collectors.toList());
+					assertEquals(records.size(), merged.size());
+					for (int i = 0; i < records.size(); i++) {
+						EntryMap recordMap = new EntryMap();
+						recordMap.storeAll(records.get(i), caseSensitive);
+						assertEquals(engine.evaluate(template, recordMap, mode), merged.get(i));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testMailMergeIsLazy() {
+		AtomicInteger read = new AtomicInteger();
+		Iterator<Map<String, String>> records = new Iterator<Map<String, String>>() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+
+			@Override
+			public Map<String, String> next() {
+				int i = read.incrementAndGet();
+				return i == 3 ? null : Collections.singletonMap("name", "Adam" + i);
+			}
+		};
+		Iterator<String> documents = engine.mailMerge("Dear ${name}", records, false, "delete-unmatched");
+		assertEquals(0, read.get());
+		assertEquals("Dear Adam1", documents.next());
+		assertEquals("Dear Adam2", documents.next());
+		assertEquals("Dear ${name}", documents.next());
+		assertEquals(3, read.get());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testMailMergeRejectsInvalidRecord() {
+		Map<String, String> record = new LinkedHashMap<>();
+		record.put("name", "Adam");
+		record.put("unused", null);
+		engine.mailMerge("Dear ${name}", Stream.of(record), false, "delete-unmatched").collect(Collectors.toList());
+	}
+
+	@Test
+	public void testMailMergeColumnsMatchesEvaluatePerRow() {
+		String[] patterns = {"name", " NAME ", "surname", "title", "name"};
+		String[][] columns = new String[patterns.length][30];
+		for (int row = 0; row < 30; row++) {
+			columns[0][row] = "Adam" + row;
+			columns[1][row] = "Eve" + row;
+			columns[2][row] = "Dykes" + row % 4;
+			columns[3][row] = row % 2 == 0 ? "name" : "surname";
+			columns[4][row] = "Bob";
+		}
+		String[] templates = {"Dear ${Name} ${N A M E} ${surname}, ${title} ${} ${age}", "Dear ${${title}} ${${TITLE}}", ""};
+		for (Boolean caseSensitive : new Boolean[]{true, false, null}) {
+			RecordColumns records = new RecordColumns(patterns, columns, caseSensitive);
+			for (String template : templates) {
+				for (String mode : new String[]{"keep-unmatched", "delete-unmatched", "optimization"}) {
+					List<String> merged = engine.mailMerge(template, records, mode).collect(Collectors.toList());
+					assertEquals(30, merged.size());
+					for (int row = 0; row < 30; row++) {
+						EntryMap rowMap = new EntryMap();
+						for (int column = 0; column < patterns.length; column++) {
+							rowMap.store(patterns[column], columns[column][row], caseSensitive);
+						}
+						assertEquals(engine.evaluate(template, rowMap, mode), merged.get(row));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRecordColumnsRejectInvalidEntries() {
+		String[][] invalid = {
+				{"name", null},
+				{"", "Adam"},
+		};
+		for (String[] column : invalid) {
+			try {
+				new RecordColumns(new String[]{column[0]}, new String[][]{{column[1], "Eve"}}, false);
+				fail();
+			} catch (RuntimeException e) {
+				// expected
+			}
+		}
+		try {
+			new RecordColumns(new String[]{"name", "surname"}, new String[][]{{"Adam"}, {"Dykes", "Smith"}}, false);
+			fail();
+		} catch (RuntimeException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCsvMailMergeWritesFile() throws Exception {
+		String csv = "\ufeffname,\" NAME \",\"sur,name\",title\r\n"
+				+ "Adam,Eve,Dykes,name\r\n"
+				+ "\r\n"
+				+ "\"Bob \"\"B\"\"\",Carl,\"Smith\nJones\",surname\n"
+				+ ",\u00c9mile,,\r"
+				+ "Dan,Dee,Doe,title";
+		String template = "Dear ${Name} ${sur, name} ${${title}}";
+		Path input = Files.createTempFile("records", ".csv");
+		Path output = Files.createTempFile("letters", ".txt");
+		try {
+			Files.write(input, csv.getBytes(StandardCharsets.UTF_8));
+			CsvMailMerge merge = new CsvMailMerge(engine.compile(template), CsvMailMerge.CSV, false, "keep-unmatched");
+
+			assertEquals(4, merge.writeFile(input, output, "\n---\n"));
+			String[][] rows = {{"Adam", "Eve", "Dykes", "name"}, {"Bob \"B\"", "Carl", "Smith\nJones", "surname"},
+					{"", "\u00c9mile", "", ""}, {"Dan", "Dee", "Doe", "title"}};
+			StringBuilder expected = new StringBuilder();
+			for (String[] row : rows) {
+				EntryMap rowMap = new EntryMap();
+				rowMap.store("name", row[0], false);
+				rowMap.store(" NAME ", row[1], false);
+				rowMap.store("sur,name", row[2], false);
+				rowMap.store("title", row[3], false);
+				expected.append(engine.evaluate(template, rowMap, "keep-unmatched")).append("\n---\n");
+			}
+			assertEquals(expected.toString(), new String(Files.readAllBytes(output), StandardCharsets.UTF_8));
+		} finally {
+			Files.delete(input);
+			Files.delete(output);
+		}
+	}
+
+	@Test
+	public void testCsvMailMergeWritesDirectoryFromTsv() throws Exception {
+		StringBuilder tsv = new StringBuilder("id\tname\n");
+		for (int i = 1; i <= 3000; i++) {
+			tsv.append(i).append('\t').append("name ").append(i).append('\n');
+		}
+		Path input = Files.createTempFile("records", ".tsv");
+		Path directory = Files.createTempDirectory("letters");
+		try {
+			Files.write(input, tsv.toString().getBytes(StandardCharsets.UTF_8));
+			CsvMailMerge merge = new CsvMailMerge(engine.compile("${ID}: ${name}"), CsvMailMerge.TSV, null, "delete-unmatched");
+
+			assertEquals(3000, merge.writeDirectory(input, directory));
+			assertEquals("1: name 1", new String(Files.readAllBytes(directory.resolve("1.txt")), StandardCharsets.UTF_8));
+			assertEquals("3000: name 3000", new String(Files.readAllBytes(directory.resolve("3000.txt")), StandardCharsets.UTF_8));
+		} finally {
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					Files.delete(file);
+				}
+			}
+			Files.delete(directory);
+			Files.delete(input);
+		}
+	}
+
+	@Test
+	public void testCsvMailMergeRejectsUnterminatedQuote() throws Exception {
+		Path input = Files.createTempFile("records", ".csv");
+		Path output = Files.createTempFile("letters", ".txt");
+		try {
+			Files.write(input, "name\n\"unterminated\n".getBytes(StandardCharsets.UTF_8));
+			new CsvMailMerge(engine.compile("${name}"), CsvMailMerge.CSV, false, "keep-unmatched").writeFile(input, output, "\n");
+			fail();
+		} catch (IOException e) {
+			assertEquals("unterminated quoted field in the row on line 2", e.getMessage());
+		} finally {
+			Files.delete(input);
+			Files.delete(output);
+		}
+	}
+
+	@Test
+	public void testCsvMailMergeRejectsEmptyPattern() throws Exception {
+		Path input = Files.createTempFile("records", ".csv");
+		Path output = Files.createTempFile("letters", ".txt");
+		try {
+			Files.write(input, "name,\n".getBytes(StandardCharsets.UTF_8));
+			new CsvMailMerge(engine.compile("${name}"), CsvMailMerge.CSV, false, "keep-unmatched").writeFile(input, output, "\n");
+			fail();
+		} catch (IOException e) {
+			assertEquals("line 1 has an empty pattern in column 2", e.getMessage());
+		} finally {
+			Files.delete(input);
+			Files.delete(output);
+		}
+	}
+
+	@Test
+	public void testCsvMailMergeRejectsRaggedRow() throws Exception {
+		Path input = Files.createTempFile("records", ".csv");
+		Path output = Files.createTempFile("letters", ".txt");
+		try {
+			Files.write(input, "name,surname\r\"Adam\rBob\",Dykes\n\n\r\nEve\n".getBytes(StandardCharsets.UTF_8));
+			new CsvMailMerge(engine.compile("${name}"), CsvMailMerge.CSV, false, "keep-unmatched").writeFile(input, output, "\n");
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("line 6 "));
+		} finally {
+			Files.delete(input);
+			Files.delete(output);
+		}
+	}
+
+	@Test
+	public void testEvaluateToAppendableMatchesEvaluate() throws Exception {
+		map.store("name", "Adam", false);
+		map.store("surname", "${name}", false);
+		map.store("full name", "Adam Dykes", true);
+		String[] templates = {"Hello ${name} ${${surname}} ${full ${name}} ${missing} $${name}}", "${name}", "no templates", ""};
+		for (String template : templates) {
+			for (String mode : new String[]{"keep-unmatched", "delete-unmatched", "optimization", null}) {
+				StringBuilder builder = new StringBuilder("> ");
+				engine.evaluate(template, map, mode, builder);
+				assertEquals("> " + engine.evaluate(template, map, mode), builder.toString());
+				StringWriter writer = new StringWriter();
+				engine.compile(template).evaluate(map, mode, writer);
+				assertEquals(engine.evaluate(template, map, mode), writer.toString());
+			}
+		}
+		StringBuilder builder = new StringBuilder();
+		engine.evaluate(null, map, "keep-unmatched", builder);
+		engine.evaluate("${name}", null, "keep-unmatched", builder);
+		assertEquals("${name}", builder.toString());
+	}
+
+	@Test
+	public void testLazyValueNotComputedByFreezingOverlay() {
+		AtomicInteger nameCalls = new AtomicInteger();
+		AtomicInteger unusedCalls = new AtomicInteger();
+		map.storeLazy("unused", () -> "never" + unusedCalls.incrementAndGet(), false);
+		map.store("surname", "Dykes", false);
+		OverlayEntryMap overlay = new OverlayEntryMap(map);
+		overlay.storeLazy("name", () -> "Adam" + nameCalls.incrementAndGet(), false);
+		overlay.store("surname", "Dykes", false);
+
+		FrozenEntryMap frozen = overlay.freeze();
+		assertEquals(0, nameCalls.get() + unusedCalls.get());
+		assertEquals("Adam1 Dykes", engine.evaluate("${name} ${surname}", frozen, "delete-unmatched"));
+		assertEquals("Adam1 Dykes", engine.evaluate("${name} ${surname}", overlay, "delete-unmatched"));
+		assertEquals(1, nameCalls.get());
+		assertEquals(0, unusedCalls.get());
+		assertEquals(3, frozen.getEntries().size());
+	}
 }
@@ -0,0 +1,93 @@
+package st;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A template string that has already been parsed and sorted (spec4, spec6 and spec7) by
+ * {@link TemplateEngine#compile(String)}. It is immutable and can be evaluated any number
+ * of times against different EntryMaps without parsing the template string again.
+ */
+public final class CompiledTemplate {
+
+    private final TemplateEngine engine;
+
+    private final String templateString;
+
+    // spans the whole template string and has the outermost templates as children, null if it is null or empty
+    private final TemplateEngine.Template root;
+
+    private final List<TemplateEngine.Template> sortedTemplates;
+
+    // by template id, whether the root is its parent
+    private final boolean[] outermost;
+
+    CompiledTemplate(TemplateEngine engine, String templateString, TemplateEngine.Template root, ArrayList<TemplateEngine.Template> sortedTemplates){
+        this.engine = engine;
+        this.templateString = templateString;
+        this.root = root;
+        this.sortedTemplates = Collections.unmodifiableList(sortedTemplates);
+        outermost = new boolean[sortedTemplates.size()];
+        if (root != null){
+            for (TemplateEngine.Template child : root.getChildren()){
+                outermost[child.getId()] = true;
+            }
+        }
+    }
+
+    public String evaluate(EntryMap entryMap, String matchingMode){
+        return engine.evaluate(this, entryMap, matchingMode);
+    }
+
+    // writes the result to out instead of returning it, see TemplateEngine.evaluate(String, EntryMap, String, Appendable)
+    public void evaluate(EntryMap entryMap, String matchingMode, Appendable out) throws IOException{
+        engine.evaluate(this, entryMap, matchingMode, out);
+    }
+
+    public int countReplacements(EntryMap entryMap, String matchingMode){
+        return engine.countReplacements(this, entryMap, matchingMode);
+    }
+
+    /**
+     * Evaluates this template once for every record, in order, as if each record had been stored
+     * into a new EntryMap with storeAll(record, caseSensitive). The results are computed as the
+     * returned stream is consumed, one record at a time. A null record evaluates like a null
+     * EntryMap, and a record with an invalid entry throws a RuntimeException when it is reached.
+     *
+     * If no template is nested in another, a record is only looked up for the contents of this
+     * template, without building an EntryMap for it.
+     */
+    public Stream<String> mailMerge(Stream<? extends Map<String, String>> records, Boolean caseSensitive, String matchingMode){
+        MailMerge mailMerge = new MailMerge(this, Boolean.TRUE.equals(caseSensitive), matchingMode);
+        return records.map(mailMerge::evaluate);
+    }
+
+    /**
+     * Evaluates this template once for every record of records, in order, computing the results
+     * as the returned stream is consumed. Each result is what evaluate() returns for the EntryMap
+     * the record stands for, see {@link RecordColumns}.
+     */
+    public Stream<String> mailMerge(RecordColumns records, String matchingMode){
+        return new MailMerge(this, records.isCaseSensitive(), matchingMode).evaluate(records);
+    }
+
+    public String getTemplateString() {
+        return templateString;
+    }
+
+    List<TemplateEngine.Template> getSortedTemplates() {
+        return sortedTemplates;
+    }
+
+    boolean[] getOutermost() {
+        return outermost;
+    }
+
+    TemplateEngine.Template getRoot() {
+        return root;
+    }
+}
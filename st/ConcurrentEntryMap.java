@@ -0,0 +1,129 @@
+package st;
+
+import java.util.ArrayList;
+import java.util.function.Supplier;
+
+/**
+ * An EntryMap that can be stored to while other threads evaluate templates with it. The entries
+ * are held in a {@link FrozenEntryMap} that is replaced, never changed: a store copies the current
+ * snapshot with the new entry added (spec4 order, spec5 uniqueness) and then publishes the copy in
+ * a single volatile write. Readers never block and see either all or none of a store, and each
+ * evaluation reads from the snapshot that was current when it started.
+ *
+ * Stores, updates and removals are serialized and cost time proportional to the size of the map,
+ * so this suits maps that are read far more often than they are written to.
+ */
+public final class ConcurrentEntryMap extends EntryMap {
+
+    private volatile FrozenEntryMap snapshot;
+
+    public ConcurrentEntryMap(){
+        snapshot = new EntryMap().freeze();
+    }
+
+    @Override
+    public void store(String pattern, String value, Boolean caseSensitive) throws RuntimeException{
+        if (caseSensitive == null){
+            caseSensitive = Boolean.FALSE;
+        }
+        if (!isEntryValid(pattern, value)){
+            throw new RuntimeException();
+        }
+
+        synchronized (this){
+            FrozenEntryMap current = snapshot;
+            if (current.isEntryUnique(pattern, value, caseSensitive)){
+                snapshot = new FrozenEntryMap(current, pattern, value, caseSensitive);
+            }
+        }
+    }
+
+    @Override
+    public void storeLazy(String pattern, Supplier<String> value, Boolean caseSensitive) throws RuntimeException{
+        if (caseSensitive == null){
+            caseSensitive = Boolean.FALSE;
+        }
+        if (!isEntryValid(pattern, value)){
+            throw new RuntimeException();
+        }
+
+        synchronized (this){
+            FrozenEntryMap current = snapshot;
+            if (!current.getTable().containsLazy(pattern, value, caseSensitive)){
+                snapshot = new FrozenEntryMap(current, pattern, value, caseSensitive);
+            }
+        }
+    }
+
+    @Override
+    public boolean update(String pattern, String oldValue, String newValue, Boolean caseSensitive) throws RuntimeException{
+        if (caseSensitive == null){
+            caseSensitive = Boolean.FALSE;
+        }
+        if (!isEntryValid(pattern, oldValue) || !isEntryValid(pattern, newValue)){
+            throw new RuntimeException();
+        }
+
+        synchronized (this){
+            if (snapshot.getTable().indexOf(pattern, oldValue, caseSensitive) == KeyIndex.NOT_FOUND){
+                return false;
+            }
+            // the copy is changed before it is published, and published without removed entries
+            FrozenEntryMap copy = new FrozenEntryMap(snapshot);
+            copy.updateEntry(pattern, oldValue, newValue, caseSensitive);
+            copy.compact();
+            snapshot = copy;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean remove(String pattern, String value, Boolean caseSensitive) throws RuntimeException{
+        if (caseSensitive == null){
+            caseSensitive = Boolean.FALSE;
+        }
+        if (!isEntryValid(pattern, value)){
+            throw new RuntimeException();
+        }
+
+        synchronized (this){
+            if (snapshot.getTable().indexOf(pattern, value, caseSensitive) == KeyIndex.NOT_FOUND){
+                return false;
+            }
+            FrozenEntryMap copy = new FrozenEntryMap(snapshot);
+            copy.removeEntry(pattern, value, caseSensitive);
+            copy.compact();
+            snapshot = copy;
+            return true;
+        }
+    }
+
+    // the whole batch is published at once, readers see all of it or none of it
+    @Override
+    void storeAll(String[] patterns, String[] values, boolean[] caseSensitiveFlags){
+        synchronized (this){
+            snapshot = new FrozenEntryMap(snapshot, patterns, values, caseSensitiveFlags);
+        }
+    }
+
+    // a copy of the entries stored so far
+    @Override
+    public ArrayList<Entry> getEntries() {
+        return snapshot.getEntries();
+    }
+
+    @Override
+    public FrozenEntryMap freeze(){
+        return snapshot;
+    }
+
+    @Override
+    EntryMap readView(){
+        return snapshot;
+    }
+
+    @Override
+    String find(CharSequence templateContent){
+        return snapshot.find(templateContent);
+    }
+}
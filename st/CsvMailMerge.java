@@ -0,0 +1,234 @@
+package st;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Renders every row of a CSV or TSV file through one template, as mail merge does with
+ * {@link RecordColumns}: the first row holds the patterns, and every other row is a record that
+ * evaluates like an EntryMap storing its fields under those patterns, in column order. Fields
+ * may be quoted as in RFC 4180 and empty lines are skipped. Files are read and written as UTF-8.
+ *
+ * The file is parsed, rendered and written in three stages that run at the same time on
+ * separate threads, passing batches of rows through bounded queues, so memory use depends on
+ * the batch size and not on the size of the file. A header with an empty field throws an
+ * IOException before anything is written. A row with another number of fields than the header
+ * throws an IOException; rows before it have been written already.
+ */
+public final class CsvMailMerge {
+
+    public static final char CSV = ',';
+    public static final char TSV = '\t';
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int ROWS_PER_BATCH = 1024;
+
+    // per queue between two stages; each stage also holds the batch it is working on
+    private static final int BATCHES_IN_FLIGHT = 4;
+
+    private final CompiledTemplate template;
+
+    private final char delimiter;
+
+    private final boolean caseSensitive;
+
+    private final String matchingMode;
+
+    public CsvMailMerge(CompiledTemplate template, char delimiter, Boolean caseSensitive, String matchingMode){
+        this.template = template;
+        this.delimiter = delimiter;
+        this.caseSensitive = Boolean.TRUE.equals(caseSensitive);
+        this.matchingMode = matchingMode;
+    }
+
+    /**
+     * Writes the documents of all rows of input to output one after another, each followed by
+     * separator unless it is null, replacing output if it exists. Returns the number of
+     * documents written.
+     */
+    public long writeFile(Path input, Path output, String separator) throws IOException{
+        try (Writer writer = openWriter(output)){
+            return run(input, (document, row) -> {
+                writer.write(document);
+                if (separator != null){
+                    writer.write(separator);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes the document of each row of input to its own file in directory, named after the
+     * row's number counted from 1 (1.txt, 2.txt, ...). Returns the number of documents written.
+     */
+    public long writeDirectory(Path input, Path directory) throws IOException{
+        return run(input, (document, row) -> {
+            try (Writer writer = openWriter(directory.resolve(row + ".txt"))){
+                writer.write(document);
+            }
+        });
+    }
+
+    interface DocumentSink {
+        void write(String document, long row) throws IOException;
+    }
+
+    // what passes between the stages: rows, their documents, the end of the input or a failure
+    private static final class Batch {
+        static final Batch END = new Batch(null, null, null);
+
+        final RecordColumns records;
+        final String[] documents;
+        final Throwable failure;
+
+        Batch(RecordColumns records, String[] documents, Throwable failure) {
+            this.records = records;
+            this.documents = documents;
+            this.failure = failure;
+        }
+    }
+
+    private long run(Path input, DocumentSink sink) throws IOException{
+        BlockingQueue<Batch> parsed = new ArrayBlockingQueue<>(BATCHES_IN_FLIGHT);
+        BlockingQueue<Batch> rendered = new ArrayBlockingQueue<>(BATCHES_IN_FLIGHT);
+        Thread parser = new Thread(() -> parse(input, parsed), "csv-mail-merge-parser");
+        Thread renderer = new Thread(() -> render(parsed, rendered), "csv-mail-merge-renderer");
+        parser.setDaemon(true);
+        renderer.setDaemon(true);
+        parser.start();
+        renderer.start();
+        try {
+            long row = 0;
+            while (true){
+                Batch batch = rendered.take();
+                if (batch.failure != null){
+                    throw rethrow(batch.failure);
+                }
+                if (batch == Batch.END){
+                    return row;
+                }
+                for (String document : batch.documents){
+                    sink.write(document, ++row);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            // stops the other stages if writing failed
+            parser.interrupt();
+            renderer.interrupt();
+        }
+    }
+
+    private void parse(Path input, BlockingQueue<Batch> parsed){
+        try {
+            try (CsvReader reader = new CsvReader(Channels.newReader(FileChannel.open(input, StandardOpenOption.READ),
+                    StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE), delimiter)){
+                String[] patterns = reader.readRow();
+                if (patterns == null){
+                    parsed.put(Batch.END);
+                    return;
+                }
+                for (int column = 0; column < patterns.length; column++){
+                    if (patterns[column].isEmpty()){
+                        throw new IOException("line " + reader.getRowLine() + " has an empty pattern in column " + (column + 1));
+                    }
+                }
+                String[][] columns = new String[patterns.length][ROWS_PER_BATCH];
+                int rows = 0;
+                String[] fields;
+                while (true){
+                    fields = reader.readRow();
+                    if (rows == ROWS_PER_BATCH || fields == null && rows > 0){
+                        parsed.put(new Batch(new RecordColumns(patterns, trim(columns, rows), caseSensitive), null, null));
+                        columns = new String[patterns.length][ROWS_PER_BATCH];
+                        rows = 0;
+                    }
+                    if (fields == null){
+                        break;
+                    }
+                    if (fields.length != patterns.length){
+                        throw new IOException("line " + reader.getRowLine() + " has " + fields.length + " fields, the header has " + patterns.length);
+                    }
+                    for (int column = 0; column < fields.length; column++){
+                        columns[column][rows] = fields[column];
+                    }
+                    rows++;
+                }
+            }
+            parsed.put(Batch.END);
+        } catch (InterruptedException e) {
+            // the merge was stopped
+        } catch (Throwable e) {
+            fail(parsed, e);
+        }
+    }
+
+    private void render(BlockingQueue<Batch> parsed, BlockingQueue<Batch> rendered){
+        try {
+            MailMerge mailMerge = new MailMerge(template, caseSensitive, matchingMode);
+            while (true){
+                Batch batch = parsed.take();
+                if (batch.records == null){
+                    rendered.put(batch);
+                    return;
+                }
+                rendered.put(new Batch(null, mailMerge.evaluate(batch.records).toArray(String[]::new), null));
+            }
+        } catch (InterruptedException e) {
+            // the merge was stopped
+        } catch (Throwable e) {
+            fail(rendered, e);
+        }
+    }
+
+    // passes failure on to the next stage, unless the merge was stopped
+    private static void fail(BlockingQueue<Batch> queue, Throwable failure){
+        try {
+            queue.put(new Batch(null, null, failure));
+        } catch (InterruptedException e) {
+            // the merge was stopped
+        }
+    }
+
+    private static String[][] trim(String[][] columns, int rows){
+        if (rows == ROWS_PER_BATCH){
+            return columns;
+        }
+        String[][] trimmed = new String[columns.length][];
+        for (int column = 0; column < columns.length; column++){
+            trimmed[column] = Arrays.copyOf(columns[column], rows);
+        }
+        return trimmed;
+    }
+
+    private static Writer openWriter(Path path) throws IOException{
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        return Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER_SIZE);
+    }
+
+    // failure as an IOException to throw, or thrown as it is if it is unchecked
+    private static IOException rethrow(Throwable failure){
+        if (failure instanceof IOException){
+            return (IOException) failure;
+        }
+        if (failure instanceof RuntimeException){
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error){
+            throw (Error) failure;
+        }
+        return new IOException(failure);
+    }
+}
@@ -0,0 +1,142 @@
+package st;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/*
+ * Reads delimiter-separated rows (RFC 4180 CSV, or TSV with a tab delimiter) one at a time. A
+ * field that starts with a double quote runs to the next lone double quote and may hold the
+ * delimiter, line breaks and doubled quotes standing for one. Rows end at \n, \r\n or \r, and
+ * empty lines are skipped. A byte order mark at the start of the input is dropped.
+ */
+class CsvReader implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final char QUOTE = '"';
+
+    private static final char BYTE_ORDER_MARK = '\uFEFF';
+
+    private final Reader reader;
+
+    private final char delimiter;
+
+    private final char[] buffer = new char[BUFFER_SIZE];
+
+    private int position;
+
+    private int limit;
+
+    private long line = 1;
+
+    private long rowLine;
+
+    private final StringBuilder field = new StringBuilder();
+
+    CsvReader(Reader reader, char delimiter){
+        this.reader = reader;
+        this.delimiter = delimiter;
+    }
+
+    // the line the row last returned by readRow() starts on, for error messages
+    long getRowLine(){
+        return rowLine;
+    }
+
+    // the fields of the next row, or null at the end of the input
+    String[] readRow() throws IOException{
+        if (line == 1 && peek() == BYTE_ORDER_MARK){
+            position++;
+        }
+        int next;
+        while ((next = peek()) == '\n' || next == '\r'){
+            skipLineBreak();
+        }
+        if (next < 0){
+            return null;
+        }
+        rowLine = line;
+        ArrayList<String> fields = new ArrayList<>();
+        while (true){
+            fields.add(readField());
+            next = peek();
+            if (next == delimiter){
+                position++;
+                continue;
+            }
+            if (next == '\n' || next == '\r'){
+                skipLineBreak();
+            }
+            return fields.toArray(new String[0]);
+        }
+    }
+
+    private String readField() throws IOException{
+        field.setLength(0);
+        if (peek() == QUOTE){
+            position++;
+            while (true){
+                int next = read();
+                if (next < 0){
+                    throw new IOException("unterminated quoted field in the row on line " + rowLine);
+                }
+                if (next == QUOTE){
+                    if (peek() != QUOTE){
+                        break;
+                    }
+                    position++;
+                }
+                else if (next == '\r' || next == '\n' && (field.length() == 0 || field.charAt(field.length() - 1) != '\r')){
+                    // \r\n is one line break
+                    line++;
+                }
+                field.append((char) next);
+            }
+            int next = peek();
+            if (next >= 0 && next != delimiter && next != '\n' && next != '\r'){
+                throw new IOException("unexpected character after quoted field on line " + line);
+            }
+            return field.toString();
+        }
+        int next;
+        while ((next = peek()) >= 0 && next != delimiter && next != '\n' && next != '\r'){
+            field.append((char) next);
+            position++;
+        }
+        return field.toString();
+    }
+
+    private void skipLineBreak() throws IOException{
+        if (read() == '\r' && peek() == '\n'){
+            position++;
+        }
+        line++;
+    }
+
+    private int read() throws IOException{
+        int next = peek();
+        if (next >= 0){
+            position++;
+        }
+        return next;
+    }
+
+    private int peek() throws IOException{
+        if (position == limit){
+            limit = reader.read(buffer, 0, buffer.length);
+            position = 0;
+            if (limit <= 0){
+                limit = 0;
+                return -1;
+            }
+        }
+        return buffer[position];
+    }
+
+    @Override
+    public void close() throws IOException{
+        reader.close();
+    }
+}
@@ -1,57 +1,396 @@
 package st;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class EntryMap {
 
-    private ArrayList<Entry> entries;
+    // the stored entries in spec4 order
+    private final EntryTable table;
 
-    private HashSet<Entry> uniqueEntries;
+    // position of the first stored entry for each pattern, see KeyMatcher
+    private final KeyIndex caseSensitiveIndex;
+
+    private final KeyIndex caseInsensitiveIndex;
 
     public EntryMap(){
-        entries = new ArrayList<>();
-        uniqueEntries = new HashSet<>();
+        table = new EntryTable(0);
+        caseSensitiveIndex = new KeyIndex(true);
+        caseInsensitiveIndex = new KeyIndex(false);
+    }
+
+    // a copy of source with room for extraCapacity more entries
+    EntryMap(EntryMap source, int extraCapacity){
+        table = new EntryTable(source.table, extraCapacity);
+        caseSensitiveIndex = new KeyIndex(source.caseSensitiveIndex);
+        caseInsensitiveIndex = new KeyIndex(source.caseInsensitiveIndex);
+        // a copy leaves the removed entries of source behind
+        compact();
+    }
+
+    // a map over storage that is already filled in, see EntryMapSnapshot
+    EntryMap(EntryTable table, KeyIndex caseSensitiveIndex, KeyIndex caseInsensitiveIndex){
+        this.table = table;
+        this.caseSensitiveIndex = caseSensitiveIndex;
+        this.caseInsensitiveIndex = caseInsensitiveIndex;
+    }
+
+    // a copy of previous with one more entry, which is valid and unique in it, stored last
+    EntryMap(EntryMap previous, String pattern, String value, boolean caseSensitive){
+        this(previous, 1);
+        addEntry(pattern, value, caseSensitive);
+    }
+
+    // a copy of previous with one more lazily computed entry, which is valid and unique in it
+    EntryMap(EntryMap previous, String pattern, Supplier<String> value, boolean caseSensitive){
+        this(previous, 1);
+        indexEntry(table.addLazy(pattern, value, caseSensitive), caseSensitive);
+    }
+
+    // a copy of previous with the given entries stored as by storeAll
+    EntryMap(EntryMap previous, String[] patterns, String[] values, boolean[] caseSensitiveFlags){
+        this(previous, patterns.length);
+        addAll(patterns, values, caseSensitiveFlags);
     }
 
     public void store(String pattern, String value, Boolean caseSensitive) throws RuntimeException{
         if (caseSensitive == null){
             caseSensitive = Boolean.FALSE;
         }
-        Entry entry = new Entry(pattern, value, caseSensitive);
-        if (!isEntryValid(entry)){
+        if (!isEntryValid(pattern, value)){
+            throw new RuntimeException();
+        }
+
+        if (isEntryUnique(pattern, value, caseSensitive)){
+            addEntry(pattern, value, caseSensitive);
+        }
+    }
+
+    /**
+     * Stores an entry whose value is computed by value the first time an evaluation resolves a
+     * template to it, and kept from then on (frozen snapshots of this map share it). The supplier
+     * is never called for an entry no template resolves to, except by getEntries() and
+     * EntryMapSnapshot.write(), which need every value. A supplier returning null makes that
+     * evaluation throw a RuntimeException, as storing a null value would (spec2).
+     *
+     * This is not an overload of store() so that store(pattern, null, flag) stays unambiguous.
+     * Entries with the same pattern and flag are only duplicates (spec5) if they were stored with
+     * the same supplier, since their values are not known yet.
+     */
+    public void storeLazy(String pattern, Supplier<String> value, Boolean caseSensitive) throws RuntimeException{
+        if (caseSensitive == null){
+            caseSensitive = Boolean.FALSE;
+        }
+        if (!isEntryValid(pattern, value)){
+            throw new RuntimeException();
+        }
+
+        if (!table.containsLazy(pattern, value, caseSensitive)){
+            indexEntry(table.addLazy(pattern, value, caseSensitive), caseSensitive);
+        }
+    }
+
+    /**
+     * Stores every pattern/value pair of entries, in the map's iteration order, with the same
+     * caseSensitive flag, as if by store(). The map is validated first: if any pattern is null or
+     * empty, or any value is null, a RuntimeException is thrown and nothing is stored.
+     */
+    public void storeAll(Map<String, String> entries, Boolean caseSensitive) throws RuntimeException{
+        int count = entries.size();
+        String[] patterns = new String[count];
+        String[] values = new String[count];
+        boolean[] caseSensitiveFlags = new boolean[count];
+        int i = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()){
+            patterns[i] = entry.getKey();
+            values[i] = entry.getValue();
+            caseSensitiveFlags[i++] = Boolean.TRUE.equals(caseSensitive);
+        }
+        storeAll(patterns, values, caseSensitiveFlags);
+    }
+
+    /**
+     * Stores the entries of the stream in order, as if by store(), with a null flag meaning case
+     * insensitive. Nothing is stored if any of them is invalid, see storeAll(Map, Boolean).
+     */
+    public void storeAll(Stream<Entry> entries) throws RuntimeException{
+        List<Entry> collected = entries.collect(Collectors.toList());
+        int count = collected.size();
+        String[] patterns = new String[count];
+        String[] values = new String[count];
+        boolean[] caseSensitiveFlags = new boolean[count];
+        for (int i = 0; i < count; i++){
+            Entry entry = collected.get(i);
+            patterns[i] = entry.getPattern();
+            values[i] = entry.getValue();
+            caseSensitiveFlags[i] = Boolean.TRUE.equals(entry.getCaseSensitive());
+        }
+        storeAll(patterns, values, caseSensitiveFlags);
+    }
+
+    /**
+     * Stores every property, including defaults, as a pattern/value pair. Properties have no
+     * order of their own, so they are stored sorted by name to make spec4 order reproducible.
+     * Nothing is stored if any of them is invalid, see storeAll(Map, Boolean).
+     */
+    public void storeAll(Properties properties, Boolean caseSensitive) throws RuntimeException{
+        String[] patterns = properties.stringPropertyNames().stream().sorted().toArray(String[]::new);
+        String[] values = new String[patterns.length];
+        boolean[] caseSensitiveFlags = new boolean[patterns.length];
+        for (int i = 0; i < patterns.length; i++){
+            values[i] = properties.getProperty(patterns[i]);
+            caseSensitiveFlags[i] = Boolean.TRUE.equals(caseSensitive);
+        }
+        storeAll(patterns, values, caseSensitiveFlags);
+    }
+
+    void storeAll(String[] patterns, String[] values, boolean[] caseSensitiveFlags){
+        addAll(patterns, values, caseSensitiveFlags);
+    }
+
+    /**
+     * Replaces the value of the entry stored with pattern, oldValue and caseSensitive by newValue,
+     * keeping its place in spec4 order, and returns whether there was such an entry. If newValue
+     * is already stored for the same pattern and flag, only the earlier of the two entries is
+     * kept, so entries stay unique (spec5). Arguments store() would reject throw a
+     * RuntimeException. Entries stored with storeLazy() cannot be named by value, so they are
+     * never updated or removed.
+     *
+     * Like remove(), this takes amortized constant time however many entries are stored.
+     */
+    public boolean update(String pattern, String oldValue, String newValue, Boolean caseSensitive) throws RuntimeException{
+        if (caseSensitive == null){
+            caseSensitive = Boolean.FALSE;
+        }
+        if (!isEntryValid(pattern, oldValue) || !isEntryValid(pattern, newValue)){
+            throw new RuntimeException();
+        }
+
+        boolean updated = updateEntry(pattern, oldValue, newValue, caseSensitive);
+        compactIfSparse();
+        return updated;
+    }
+
+    /**
+     * Removes the entry stored with pattern, value and caseSensitive and returns whether there
+     * was one. The other entries keep their spec4 order, so templates it matched resolve to the
+     * next entry stored for an equivalent pattern, if any (spec8). Arguments store() would reject
+     * throw a RuntimeException.
+     */
+    public boolean remove(String pattern, String value, Boolean caseSensitive) throws RuntimeException{
+        if (caseSensitive == null){
+            caseSensitive = Boolean.FALSE;
+        }
+        if (!isEntryValid(pattern, value)){
             throw new RuntimeException();
         }
 
-        if (isEntryUnique(entry)){
-            addEntry(entry);
+        boolean removed = removeEntry(pattern, value, caseSensitive);
+        compactIfSparse();
+        return removed;
+    }
+
+    boolean updateEntry(String pattern, String oldValue, String newValue, boolean caseSensitive){
+        int position = table.indexOf(pattern, oldValue, caseSensitive);
+        if (position == KeyIndex.NOT_FOUND){
+            return false;
+        }
+        int duplicate = table.indexOf(pattern, newValue, caseSensitive);
+        if (duplicate == KeyIndex.NOT_FOUND){
+            table.setValue(position, newValue);
+        }
+        else if (duplicate < position){
+            removeAt(position);
+        }
+        else if (duplicate > position){
+            removeAt(duplicate);
+            table.setValue(position, newValue);
+        }
+        return true;
+    }
+
+    boolean removeEntry(String pattern, String value, boolean caseSensitive){
+        int position = table.indexOf(pattern, value, caseSensitive);
+        if (position == KeyIndex.NOT_FOUND){
+            return false;
+        }
+        removeAt(position);
+        return true;
+    }
+
+    // the index keeps pointing at the first entry for each pattern, now the next equivalent one
+    private void removeAt(int position){
+        if (!table.hasEquivalentLinks()){
+            linkEquivalents();
+        }
+        KeyIndex index = table.isCaseSensitive(position) ? caseSensitiveIndex : caseInsensitiveIndex;
+        boolean first = table.isFirstEquivalent(position);
+        int next = table.unlinkEquivalent(position);
+        if (first){
+            index.replace(position, next, table);
+        }
+        table.remove(position);
+    }
+
+    // built on the first removal, so maps that are only stored to do not pay for the links
+    private void linkEquivalents(){
+        table.linkEquivalents();
+        for (int position = 0; position < table.size(); position++){
+            if (!table.isRemoved(position)){
+                KeyIndex index = table.isCaseSensitive(position) ? caseSensitiveIndex : caseInsensitiveIndex;
+                table.linkEquivalent(position, index.get(table.getPattern(position), table));
+            }
+        }
+    }
+
+    // at least as many removals as compacting costs have happened since the last time
+    private void compactIfSparse(){
+        if (table.removedCount() * 2 > table.size()){
+            compact();
+        }
+    }
+
+    // drops the removed entries, if there are any, and indexes the rest at their new positions
+    void compact(){
+        if (table.removedCount() == 0){
+            return;
+        }
+        table.compact();
+        caseSensitiveIndex.clear();
+        caseInsensitiveIndex.clear();
+        for (int position = 0; position < table.size(); position++){
+            indexEntry(position, table.isCaseSensitive(position));
+        }
+    }
+
+    // validates all entries before storing any, with the table and indexes sized for all of them
+    private void addAll(String[] patterns, String[] values, boolean[] caseSensitiveFlags){
+        int caseSensitiveCount = 0;
+        for (int i = 0; i < patterns.length; i++){
+            if (!isEntryValid(patterns[i], values[i])){
+                throw new RuntimeException();
+            }
+            if (caseSensitiveFlags[i]){
+                caseSensitiveCount++;
+            }
+        }
+        table.ensureCapacity(table.size() + patterns.length);
+        caseSensitiveIndex.ensureCapacity(caseSensitiveCount);
+        caseInsensitiveIndex.ensureCapacity(patterns.length - caseSensitiveCount);
+        for (int i = 0; i < patterns.length; i++){
+            if (isEntryUnique(patterns[i], values[i], caseSensitiveFlags[i])){
+                addEntry(patterns[i], values[i], caseSensitiveFlags[i]);
+            }
+        }
+    }
+
+    // stores the entries of source in order, as store() and storeLazy() would, sharing its lazily
+    // computed values with it instead of computing them
+    void storeAll(EntryTable source){
+        for (int position = 0; position < source.size(); position++){
+            if (source.isRemoved(position)){
+                continue;
+            }
+            String pattern = source.getPattern(position);
+            boolean caseSensitive = source.isCaseSensitive(position);
+            if (source.isLazy(position)){
+                LazyValue value = source.getLazyValue(position);
+                if (!table.containsLazy(pattern, value.getSupplier(), caseSensitive)){
+                    indexEntry(table.addLazy(pattern, value, caseSensitive), caseSensitive);
+                }
+            }
+            else if (isEntryUnique(pattern, source.getValue(position), caseSensitive)){
+                addEntry(pattern, source.getValue(position), caseSensitive);
+            }
         }
     }
 
-    private Boolean isEntryValid(Entry entry){
-        if (entry.getPattern()== null)
+    // value is a String, or the Supplier of one for storeLazy
+    Boolean isEntryValid(String pattern, Object value){
+        if (pattern == null)
             return Boolean.FALSE;
-        if (entry.getPattern().isEmpty())
+        if (pattern.isEmpty())
             return Boolean.FALSE;
-        if (entry.getValue() == null)
+        if (value == null)
             return Boolean.FALSE;
         return Boolean.TRUE;
     }
 
-    private Boolean isEntryUnique(Entry entry){
-        return !uniqueEntries.contains(entry);
+    Boolean isEntryUnique(String pattern, String value, boolean caseSensitive){
+        return !table.contains(pattern, value, caseSensitive);
+    }
+
+    private void addEntry(String pattern, String value, boolean caseSensitive){
+        indexEntry(table.add(pattern, value, caseSensitive), caseSensitive);
+    }
+
+    private void indexEntry(int position, boolean caseSensitive){
+        int first = caseSensitive ? caseSensitiveIndex.putIfAbsent(position, table) : caseInsensitiveIndex.putIfAbsent(position, table);
+        if (table.hasEquivalentLinks()){
+            table.linkEquivalent(position, first == KeyIndex.NOT_FOUND ? position : first);
+        }
+    }
+
+    EntryTable getTable(){
+        return table;
     }
 
-    private void addEntry(Entry entry){
-        entries.add(entry);
-        uniqueEntries.add(entry);
+    KeyIndex getCaseSensitiveIndex(){
+        return caseSensitiveIndex;
     }
 
+    KeyIndex getCaseInsensitiveIndex(){
+        return caseInsensitiveIndex;
+    }
+
+    // the map that one evaluation does all of its lookups in
+    EntryMap readView(){
+        return this;
+    }
+
+    // the value of the entry that templateContent resolves to, or null if there is none
+    String find(CharSequence templateContent){
+        int caseSensitiveMatch = caseSensitiveIndex.get(templateContent, table);
+        int caseInsensitiveMatch = caseInsensitiveIndex.get(templateContent, table);
+        if (caseSensitiveMatch == KeyIndex.NOT_FOUND && caseInsensitiveMatch == KeyIndex.NOT_FOUND){
+            return null;
+        }
+        // spec8: the entry stored first wins
+        if (caseSensitiveMatch == KeyIndex.NOT_FOUND){
+            return table.getValue(caseInsensitiveMatch);
+        }
+        if (caseInsensitiveMatch == KeyIndex.NOT_FOUND){
+            return table.getValue(caseSensitiveMatch);
+        }
+        return table.getValue(Math.min(caseSensitiveMatch, caseInsensitiveMatch));
+    }
+
+    // the entries are not kept as Entry objects, so this is a new list on every call
     public ArrayList<Entry> getEntries() {
+        ArrayList<Entry> entries = new ArrayList<>(table.size() - table.removedCount());
+        for (int position = 0; position < table.size(); position++){
+            if (table.isRemoved(position)){
+                continue;
+            }
+            entries.add(new Entry(table.getPattern(position), table.getValue(position), table.isCaseSensitive(position)));
+        }
         return entries;
     }
 
-    class Entry {
+    /**
+     * Returns an immutable snapshot of the entries stored so far, see {@link FrozenEntryMap}.
+     * Later stores to this map do not show in the snapshot.
+     */
+    public FrozenEntryMap freeze(){
+        return new FrozenEntryMap(this);
+    }
+
+    public static class Entry {
         String pattern;
         String value;
         Boolean caseSensitive;
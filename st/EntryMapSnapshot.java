@@ -0,0 +1,259 @@
+package st;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Writes an EntryMap to a binary file and loads it back as a {@link FrozenEntryMap}. The file holds
+ * the entries in spec4 order together with the pattern indexes, hashes of the normalized patterns
+ * included, so loading does not store or hash anything: the file is memory-mapped, the indexes are
+ * copied out of it and every pattern and value is only decoded the first time a lookup needs it.
+ *
+ * A loaded map evaluates every template exactly like the map that was written. Snapshots are
+ * limited to 2 GB.
+ */
+public final class EntryMapSnapshot {
+
+    private static final int MAGIC = 0x53544D53;
+    private static final int VERSION = 1;
+
+    private EntryMapSnapshot(){
+
+    }
+
+    /**
+     * Writes the entries of entryMap as they are now (see {@link EntryMap#freeze()}) to path,
+     * replacing the file if it exists.
+     */
+    public static void write(EntryMap entryMap, Path path) throws IOException{
+        FrozenEntryMap frozen = entryMap.freeze();
+        EntryTable table = frozen.getTable();
+        int count = table.size();
+        byte[][] patterns = new byte[count][];
+        byte[][] values = new byte[count][];
+        for (int position = 0; position < count; position++){
+            patterns[position] = encode(table.getPattern(position));
+            values[position] = encode(table.getValue(position));
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))){
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // case insensitive hashes depend on how the default locale lower-cases
+            writeBytes(out, Locale.getDefault().getLanguage().getBytes(StandardCharsets.UTF_8));
+            out.writeInt(count);
+            writeLongs(out, table.getCaseSensitiveFlags());
+            // lazily stored entries are loaded as plain values
+            writeInts(out, table.getResolvedSlots());
+            writeIndex(out, frozen.getCaseSensitiveIndex());
+            writeIndex(out, frozen.getCaseInsensitiveIndex());
+            int offset = writeOffsets(out, patterns, 0);
+            writeOffsets(out, values, offset);
+            for (byte[] pattern : patterns){
+                out.write(pattern);
+            }
+            for (byte[] value : values){
+                out.write(value);
+            }
+        }
+    }
+
+    /**
+     * Maps the snapshot at path into memory and returns the map it holds. The file should not be
+     * changed while the map is in use.
+     */
+    public static FrozenEntryMap load(Path path) throws IOException{
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            if (channel.size() > Integer.MAX_VALUE){
+                throw new IOException("snapshot is larger than 2 GB: " + path);
+            }
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 8 || buffer.getInt() != MAGIC || buffer.getInt() != VERSION){
+            throw new IOException("not an EntryMap snapshot: " + path);
+        }
+        String language = new String(readBytes(buffer), StandardCharsets.UTF_8);
+        int count = buffer.getInt();
+        long[] caseSensitiveFlags = readLongs(buffer);
+        int[] uniqueSlots = readInts(buffer);
+        KeyIndex caseSensitiveIndex = readIndex(buffer, true);
+        KeyIndex caseInsensitiveIndex = readIndex(buffer, false);
+        int patternOffsets = buffer.position();
+        int valueOffsets = patternOffsets + 4 * (count + 1);
+        int strings = valueOffsets + 4 * (count + 1);
+
+        EntryTable table = new EntryTable(count, caseSensitiveFlags, uniqueSlots,
+                new MappedStrings(buffer, patternOffsets, valueOffsets, strings));
+        if (!language.equals(Locale.getDefault().getLanguage())){
+            caseInsensitiveIndex = reindex(table, caseInsensitiveIndex.size());
+        }
+        return new FrozenEntryMap(table, caseSensitiveIndex, caseInsensitiveIndex);
+    }
+
+    private static KeyIndex reindex(EntryTable table, int expectedSize){
+        KeyIndex index = new KeyIndex(false, expectedSize);
+        for (int position = 0; position < table.size(); position++){
+            if (!table.isCaseSensitive(position)){
+                index.putIfAbsent(position, table);
+            }
+        }
+        return index;
+    }
+
+    private static void writeIndex(DataOutputStream out, KeyIndex index) throws IOException{
+        out.writeInt(index.size());
+        writeInts(out, index.getHashes());
+        writeInts(out, index.getPositions());
+    }
+
+    private static KeyIndex readIndex(ByteBuffer buffer, boolean caseSensitive){
+        int size = buffer.getInt();
+        int[] hashes = readInts(buffer);
+        int[] positions = readInts(buffer);
+        return new KeyIndex(caseSensitive, hashes, positions, size);
+    }
+
+    // the offset of every string followed by the end of the last one, and returns that end
+    private static int writeOffsets(DataOutputStream out, byte[][] strings, int offset) throws IOException{
+        for (byte[] string : strings){
+            out.writeInt(offset);
+            offset += string.length;
+        }
+        out.writeInt(offset);
+        return offset;
+    }
+
+    // Strings are stored like UTF-8 but one char at a time, so that a lone surrogate (which UTF-8
+    // cannot hold) still comes back as it was: one byte for ASCII, two or three for other chars.
+    static byte[] encode(String string){
+        byte[] bytes = new byte[string.length() * 3];
+        int length = 0;
+        for (int i = 0; i < string.length(); i++){
+            char c = string.charAt(i);
+            if (c < 0x80){
+                bytes[length++] = (byte) c;
+            }
+            else if (c < 0x800){
+                bytes[length++] = (byte) (0xC0 | c >> 6);
+                bytes[length++] = (byte) (0x80 | c & 0x3F);
+            }
+            else{
+                bytes[length++] = (byte) (0xE0 | c >> 12);
+                bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[length++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    static String decode(byte[] bytes){
+        char[] chars = new char[bytes.length];
+        int length = 0;
+        for (int i = 0; i < bytes.length; length++){
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80){
+                chars[length] = (char) b;
+                i += 1;
+            }
+            else if (b < 0xE0){
+                chars[length] = (char) ((b & 0x1F) << 6 | bytes[i + 1] & 0x3F);
+                i += 2;
+            }
+            else{
+                chars[length] = (char) ((b & 0x0F) << 12 | (bytes[i + 1] & 0x3F) << 6 | bytes[i + 2] & 0x3F);
+                i += 3;
+            }
+        }
+        return new String(chars, 0, length);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException{
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints) throws IOException{
+        out.writeInt(ints.length);
+        for (int i : ints){
+            out.writeInt(i);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer){
+        int[] ints = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(ints);
+        buffer.position(buffer.position() + 4 * ints.length);
+        return ints;
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] longs) throws IOException{
+        out.writeInt(longs.length);
+        for (long l : longs){
+            out.writeLong(l);
+        }
+    }
+
+    private static long[] readLongs(ByteBuffer buffer){
+        long[] longs = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(longs);
+        buffer.position(buffer.position() + 8 * longs.length);
+        return longs;
+    }
+
+    // decodes patterns and values straight from the mapped file, only reading it at absolute positions
+    private static final class MappedStrings implements EntryTable.StringSource {
+
+        private final ByteBuffer buffer;
+
+        private final int patternOffsets;
+
+        private final int valueOffsets;
+
+        private final int strings;
+
+        MappedStrings(ByteBuffer buffer, int patternOffsets, int valueOffsets, int strings){
+            this.buffer = buffer;
+            this.patternOffsets = patternOffsets;
+            this.valueOffsets = valueOffsets;
+            this.strings = strings;
+        }
+
+        @Override
+        public String pattern(int position){
+            return decode(patternOffsets, position);
+        }
+
+        @Override
+        public String value(int position){
+            return decode(valueOffsets, position);
+        }
+
+        private String decode(int offsets, int position){
+            int start = buffer.getInt(offsets + 4 * position);
+            int end = buffer.getInt(offsets + 4 * position + 4);
+            byte[] bytes = new byte[end - start];
+            ByteBuffer string = buffer.duplicate();
+            string.position(strings + start);
+            string.get(bytes);
+            return EntryMapSnapshot.decode(bytes);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package st;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/*
+ * The entries of an EntryMap in store order, kept column by column: one array of patterns, one of
+ * values and a bitset of case sensitive flags, so an entry costs two references and a bit instead
+ * of an object. Entries are told apart (spec5) through an open addressing table of positions that
+ * hashes them like EntryMap.Entry.hashCode(). An entry whose value is computed lazily has no value
+ * to hash yet, so it is told apart by its supplier instead.
+ *
+ * A removed entry keeps its position, marked as removed, so that removing does not move the
+ * entries after it. compact() drops the removed positions once they are worth reclaiming. Once
+ * entries start being removed, each entry is also linked to the entries with equivalent patterns
+ * (see KeyIndex) in a circular list ordered by position, so the next one is at hand when the
+ * first of them is removed.
+ */
+class EntryTable {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] patterns;
+
+    private String[] values;
+
+    private long[] caseSensitiveFlags;
+
+    private int size;
+
+    // position + 1 of an entry in each used slot, 0 in free slots
+    private int[] uniqueSlots;
+
+    // where patterns and values not read yet come from, if they were not all given up front
+    private StringSource source;
+
+    // null until the first lazily computed value is added, null for the other entries after that
+    private LazyValue[] lazyValues;
+
+    // null until the first entry is removed
+    private long[] removed;
+
+    private int removedCount;
+
+    // null until linkEquivalents() is called, and again after compact()
+    private int[] nextEquivalent;
+
+    private int[] previousEquivalent;
+
+    interface StringSource {
+        String pattern(int position);
+
+        String value(int position);
+    }
+
+    EntryTable(int expectedSize){
+        int capacity = Math.max(INITIAL_CAPACITY, expectedSize);
+        patterns = new String[capacity];
+        values = new String[capacity];
+        caseSensitiveFlags = new long[(capacity + 63) / 64];
+        uniqueSlots = new int[slotsFor(capacity)];
+    }
+
+    // size entries whose patterns and values are read from source the first time they are used
+    EntryTable(int size, long[] caseSensitiveFlags, int[] uniqueSlots, StringSource source){
+        patterns = new String[size];
+        values = new String[size];
+        this.caseSensitiveFlags = caseSensitiveFlags;
+        this.size = size;
+        this.uniqueSlots = uniqueSlots;
+        this.source = source;
+    }
+
+    // a copy of other with room for extraCapacity more entries
+    EntryTable(EntryTable other, int extraCapacity){
+        int capacity = other.size + extraCapacity;
+        patterns = Arrays.copyOf(other.patterns, capacity);
+        values = Arrays.copyOf(other.values, capacity);
+        caseSensitiveFlags = Arrays.copyOf(other.caseSensitiveFlags, (capacity + 63) / 64);
+        size = other.size;
+        source = other.source;
+        lazyValues = other.lazyValues == null ? null : Arrays.copyOf(other.lazyValues, capacity);
+        removed = other.removed == null ? null : Arrays.copyOf(other.removed, (capacity + 63) / 64);
+        removedCount = other.removedCount;
+        uniqueSlots = other.uniqueSlots.length >= slotsFor(capacity) ? other.uniqueSlots.clone() : rehash(other, slotsFor(capacity));
+    }
+
+    int size(){
+        return size;
+    }
+
+    // strings from the source are kept once read; threads racing to read one get equal Strings
+    String getPattern(int position){
+        String pattern = patterns[position];
+        if (pattern == null){
+            pattern = source.pattern(position);
+            patterns[position] = pattern;
+        }
+        return pattern;
+    }
+
+    String getValue(int position){
+        String value = values[position];
+        if (value == null){
+            value = isLazy(position) ? lazyValues[position].get() : source.value(position);
+            values[position] = value;
+        }
+        return value;
+    }
+
+    LazyValue getLazyValue(int position){
+        return lazyValues[position];
+    }
+
+    boolean isLazy(int position){
+        return lazyValues != null && lazyValues[position] != null;
+    }
+
+    boolean isRemoved(int position){
+        return removed != null && (removed[position >>> 6] & (1L << position)) != 0;
+    }
+
+    int removedCount(){
+        return removedCount;
+    }
+
+    boolean isCaseSensitive(int position){
+        return (caseSensitiveFlags[position >>> 6] & (1L << position)) != 0;
+    }
+
+    boolean contains(String pattern, String value, boolean caseSensitive){
+        return indexOf(pattern, value, caseSensitive) != KeyIndex.NOT_FOUND;
+    }
+
+    // the position of the entry, or NOT_FOUND; lazily computed entries are not found by value
+    int indexOf(String pattern, String value, boolean caseSensitive){
+        int mask = uniqueSlots.length - 1;
+        for (int slot = slotOf(hash(pattern, value, caseSensitive), mask); uniqueSlots[slot] != 0; slot = (slot + 1) & mask){
+            int position = uniqueSlots[slot] - 1;
+            if (!isLazy(position) && getPattern(position).equals(pattern) && getValue(position).equals(value)
+                    && isCaseSensitive(position) == caseSensitive){
+                return position;
+            }
+        }
+        return KeyIndex.NOT_FOUND;
+    }
+
+    // whether the same supplier was already added for the same pattern and flag
+    boolean containsLazy(String pattern, Supplier<String> value, boolean caseSensitive){
+        int mask = uniqueSlots.length - 1;
+        for (int slot = slotOf(lazyHash(pattern, value, caseSensitive), mask); uniqueSlots[slot] != 0; slot = (slot + 1) & mask){
+            int position = uniqueSlots[slot] - 1;
+            if (isLazy(position) && getPattern(position).equals(pattern) && lazyValues[position].getSupplier() == value
+                    && isCaseSensitive(position) == caseSensitive){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // appends an entry that is not contained yet and returns its position
+    int add(String pattern, String value, boolean caseSensitive){
+        if (size == patterns.length){
+            grow();
+        }
+        int position = size++;
+        patterns[position] = pattern;
+        values[position] = value;
+        if (caseSensitive){
+            caseSensitiveFlags[position >>> 6] |= 1L << position;
+        }
+        insertSlot(uniqueSlots, position);
+        return position;
+    }
+
+    // appends an entry whose supplier is not contained yet and returns its position
+    int addLazy(String pattern, Supplier<String> value, boolean caseSensitive){
+        return addLazy(pattern, new LazyValue(value), caseSensitive);
+    }
+
+    // the same with a value that may be shared with other tables, computed or not
+    int addLazy(String pattern, LazyValue value, boolean caseSensitive){
+        if (size == patterns.length){
+            grow();
+        }
+        if (lazyValues == null){
+            lazyValues = new LazyValue[patterns.length];
+        }
+        int position = size++;
+        patterns[position] = pattern;
+        lazyValues[position] = value;
+        if (caseSensitive){
+            caseSensitiveFlags[position >>> 6] |= 1L << position;
+        }
+        insertSlot(uniqueSlots, position);
+        return position;
+    }
+
+    // replaces the value of an entry that is not lazily computed, which must stay unique
+    void setValue(int position, String value){
+        removeSlot(position);
+        values[position] = value;
+        insertSlot(uniqueSlots, position);
+    }
+
+    // marks the entry as removed, its position is not reused until compact()
+    void remove(int position){
+        removeSlot(position);
+        if (removed == null){
+            removed = new long[caseSensitiveFlags.length];
+        }
+        removed[position >>> 6] |= 1L << position;
+        removedCount++;
+        patterns[position] = null;
+        values[position] = null;
+        if (lazyValues != null){
+            lazyValues[position] = null;
+        }
+    }
+
+    // moves the entries left down over the removed ones, keeping their order; positions change
+    void compact(){
+        int count = 0;
+        for (int position = 0; position < size; position++){
+            if (isRemoved(position)){
+                continue;
+            }
+            // the source is looked up by the old positions, so read everything from it first
+            patterns[count] = getPattern(position);
+            values[count] = values[position] != null || isLazy(position) ? values[position] : source.value(position);
+            if (lazyValues != null){
+                lazyValues[count] = lazyValues[position];
+            }
+            if (isCaseSensitive(position)){
+                caseSensitiveFlags[count >>> 6] |= 1L << count;
+            }
+            else{
+                caseSensitiveFlags[count >>> 6] &= ~(1L << count);
+            }
+            count++;
+        }
+        for (int position = count; position < size; position++){
+            caseSensitiveFlags[position >>> 6] &= ~(1L << position);
+        }
+        Arrays.fill(patterns, count, size, null);
+        Arrays.fill(values, count, size, null);
+        if (lazyValues != null){
+            Arrays.fill(lazyValues, count, size, null);
+        }
+        size = count;
+        source = null;
+        removed = null;
+        removedCount = 0;
+        nextEquivalent = null;
+        previousEquivalent = null;
+        uniqueSlots = rehash(this, uniqueSlots.length);
+    }
+
+    boolean hasEquivalentLinks(){
+        return nextEquivalent != null;
+    }
+
+    // starts keeping equivalent entries linked, with every entry on its own until linked
+    void linkEquivalents(){
+        nextEquivalent = new int[patterns.length];
+        previousEquivalent = new int[patterns.length];
+    }
+
+    // links position as the last equivalent of first, or on its own if it is first
+    void linkEquivalent(int position, int first){
+        if (position == first){
+            nextEquivalent[position] = position;
+            previousEquivalent[position] = position;
+            return;
+        }
+        int last = previousEquivalent[first];
+        nextEquivalent[last] = position;
+        previousEquivalent[position] = last;
+        nextEquivalent[position] = first;
+        previousEquivalent[first] = position;
+    }
+
+    // whether no equivalent entry was stored before the one at position
+    boolean isFirstEquivalent(int position){
+        return previousEquivalent[position] >= position;
+    }
+
+    // unlinks position and returns the equivalent entry after it, or NOT_FOUND if it was the only one
+    int unlinkEquivalent(int position){
+        int next = nextEquivalent[position];
+        if (next == position){
+            return KeyIndex.NOT_FOUND;
+        }
+        int previous = previousEquivalent[position];
+        nextEquivalent[previous] = next;
+        previousEquivalent[next] = previous;
+        return next;
+    }
+
+    // makes room for capacity entries in total, so adding up to that many does not grow the arrays
+    void ensureCapacity(int capacity){
+        if (capacity > patterns.length){
+            resize(Math.max(capacity, patterns.length * 2));
+        }
+    }
+
+    long[] getCaseSensitiveFlags(){
+        return caseSensitiveFlags;
+    }
+
+    int[] getUniqueSlots(){
+        return uniqueSlots;
+    }
+
+    // the unique slots with every lazily stored entry placed by the hash of its computed value,
+    // as a table holding the same entries as plain values has them
+    int[] getResolvedSlots(){
+        if (lazyValues == null){
+            return uniqueSlots;
+        }
+        int[] slots = new int[uniqueSlots.length];
+        for (int position = 0; position < size; position++){
+            if (!isRemoved(position)){
+                insertSlot(slots, position, hash(getPattern(position), getValue(position), isCaseSensitive(position)));
+            }
+        }
+        return slots;
+    }
+
+    private void grow(){
+        resize(Math.max(INITIAL_CAPACITY, patterns.length * 2));
+    }
+
+    private void resize(int capacity){
+        patterns = Arrays.copyOf(patterns, capacity);
+        values = Arrays.copyOf(values, capacity);
+        caseSensitiveFlags = Arrays.copyOf(caseSensitiveFlags, (capacity + 63) / 64);
+        if (lazyValues != null){
+            lazyValues = Arrays.copyOf(lazyValues, capacity);
+        }
+        if (removed != null){
+            removed = Arrays.copyOf(removed, caseSensitiveFlags.length);
+        }
+        if (nextEquivalent != null){
+            nextEquivalent = Arrays.copyOf(nextEquivalent, capacity);
+            previousEquivalent = Arrays.copyOf(previousEquivalent, capacity);
+        }
+        uniqueSlots = rehash(this, slotsFor(capacity));
+    }
+
+    private static int[] rehash(EntryTable table, int slotCount){
+        int[] slots = new int[slotCount];
+        for (int position = 0; position < table.size; position++){
+            if (!table.isRemoved(position)){
+                table.insertSlot(slots, position);
+            }
+        }
+        return slots;
+    }
+
+    private void insertSlot(int[] slots, int position){
+        insertSlot(slots, position, hashAt(position));
+    }
+
+    private static void insertSlot(int[] slots, int position, int hash){
+        int mask = slots.length - 1;
+        int slot = slotOf(hash, mask);
+        while (slots[slot] != 0){
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = position + 1;
+    }
+
+    // frees the slot of position and shifts the slots after it back so no lookup stops short
+    private void removeSlot(int position){
+        int mask = uniqueSlots.length - 1;
+        int hole = slotOf(hashAt(position), mask);
+        while (uniqueSlots[hole] != position + 1){
+            hole = (hole + 1) & mask;
+        }
+        for (int slot = (hole + 1) & mask; uniqueSlots[slot] != 0; slot = (slot + 1) & mask){
+            int home = slotOf(hashAt(uniqueSlots[slot] - 1), mask);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)){
+                uniqueSlots[hole] = uniqueSlots[slot];
+                hole = slot;
+            }
+        }
+        uniqueSlots[hole] = 0;
+    }
+
+    private int hashAt(int position){
+        return isLazy(position)
+                ? lazyHash(getPattern(position), lazyValues[position].getSupplier(), isCaseSensitive(position))
+                : hash(getPattern(position), getValue(position), isCaseSensitive(position));
+    }
+
+    // a power of two with at least two slots per entry
+    private static int slotsFor(int capacity){
+        return Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) * 2;
+    }
+
+    private static int slotOf(int hash, int mask){
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    // the same as EntryMap.Entry.hashCode()
+    private static int hash(String pattern, String value, boolean caseSensitive){
+        int result = pattern.hashCode();
+        result = 31 * result + value.hashCode();
+        return 31 * result + Boolean.hashCode(caseSensitive);
+    }
+
+    private static int lazyHash(String pattern, Supplier<String> value, boolean caseSensitive){
+        int result = pattern.hashCode();
+        result = 31 * result + System.identityHashCode(value);
+        return 31 * result + Boolean.hashCode(caseSensitive);
+    }
+}
@@ -0,0 +1,66 @@
+package st;
+
+import java.util.function.Supplier;
+
+/**
+ * An EntryMap that can no longer be changed, made by {@link EntryMap#freeze()}. Its entries and
+ * pattern indexes are built once when it is created and only read afterwards, so one snapshot
+ * can be shared by any number of threads evaluating templates at the same time, without locking.
+ * It is passed to {@link TemplateEngine#evaluate(String, EntryMap, String)} like any EntryMap.
+ */
+public final class FrozenEntryMap extends EntryMap {
+
+    FrozenEntryMap(EntryMap source){
+        super(source, 0);
+    }
+
+    FrozenEntryMap(EntryTable table, KeyIndex caseSensitiveIndex, KeyIndex caseInsensitiveIndex){
+        super(table, caseSensitiveIndex, caseInsensitiveIndex);
+    }
+
+    FrozenEntryMap(FrozenEntryMap previous, String pattern, String value, boolean caseSensitive){
+        super(previous, pattern, value, caseSensitive);
+    }
+
+    FrozenEntryMap(FrozenEntryMap previous, String pattern, Supplier<String> value, boolean caseSensitive){
+        super(previous, pattern, value, caseSensitive);
+    }
+
+    FrozenEntryMap(FrozenEntryMap previous, String[] patterns, String[] values, boolean[] caseSensitiveFlags){
+        super(previous, patterns, values, caseSensitiveFlags);
+    }
+
+    /**
+     * Always throws UnsupportedOperationException, a frozen map cannot be stored to. The same
+     * goes for storeLazy, update, remove and every storeAll overload.
+     */
+    @Override
+    public void store(String pattern, String value, Boolean caseSensitive) throws RuntimeException{
+        throw new UnsupportedOperationException("a frozen EntryMap cannot be stored to");
+    }
+
+    @Override
+    public void storeLazy(String pattern, Supplier<String> value, Boolean caseSensitive) throws RuntimeException{
+        throw new UnsupportedOperationException("a frozen EntryMap cannot be stored to");
+    }
+
+    @Override
+    public boolean update(String pattern, String oldValue, String newValue, Boolean caseSensitive) throws RuntimeException{
+        throw new UnsupportedOperationException("a frozen EntryMap cannot be stored to");
+    }
+
+    @Override
+    public boolean remove(String pattern, String value, Boolean caseSensitive) throws RuntimeException{
+        throw new UnsupportedOperationException("a frozen EntryMap cannot be stored to");
+    }
+
+    @Override
+    void storeAll(String[] patterns, String[] values, boolean[] caseSensitiveFlags){
+        throw new UnsupportedOperationException("a frozen EntryMap cannot be stored to");
+    }
+
+    @Override
+    public FrozenEntryMap freeze(){
+        return this;
+    }
+}
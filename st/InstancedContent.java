@@ -0,0 +1,110 @@
+package st;
+
+/*
+ * The content of a template read in place: a slice of the template string in which every child
+ * template is replaced by what it was instanced to, without copying either into a new String.
+ * TemplateEngine.countReplacements looks these up in the EntryMap instead of built contents.
+ */
+class InstancedContent implements CharSequence {
+
+    private final String templateString;
+
+    private final int from;
+
+    private final int to;
+
+    private final TemplateEngine.Template[] children;
+
+    private final String[] instanced;
+
+    private final int length;
+
+    // the segment read by the last charAt: even segments are template string slices, odd ones
+    // children, and segmentText.charAt(segmentOffset + index) is the character at index in it
+    private int segment = -1;
+
+    private int segmentStart;
+
+    private int segmentEnd;
+
+    private String segmentText;
+
+    private int segmentOffset;
+
+    InstancedContent(String templateString, int from, int to, TemplateEngine.Template[] children, String[] instanced){
+        this.templateString = templateString;
+        this.from = from;
+        this.to = to;
+        this.children = children;
+        this.instanced = instanced;
+        int length = to - from;
+        for (TemplateEngine.Template child : children){
+            length += instanced[child.getId()].length() - (child.getEndIndex() - child.getStartIndex() + 2);
+        }
+        this.length = length;
+    }
+
+    @Override
+    public int length(){
+        return length;
+    }
+
+    @Override
+    public char charAt(int index){
+        if (children.length == 0){
+            return templateString.charAt(from + index);
+        }
+        if (index < segmentStart || index >= segmentEnd){
+            seek(index);
+        }
+        return segmentText.charAt(segmentOffset + index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end){
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder builder = new StringBuilder(length);
+        int position = from;
+        for (TemplateEngine.Template child : children){
+            builder.append(templateString, position, child.getStartIndex() - 1);
+            builder.append(instanced[child.getId()]);
+            position = child.getEndIndex() + 1;
+        }
+        builder.append(templateString, position, to);
+        return builder.toString();
+    }
+
+    private void seek(int index){
+        if (segment < 0 || index < segmentStart){
+            segment = -1;
+            segmentEnd = 0;
+        }
+        do {
+            segment++;
+            segmentStart = segmentEnd;
+            if (segment % 2 == 0){
+                segmentText = templateString;
+                segmentEnd = segmentStart + sliceEnd(segment / 2) - sliceStart(segment / 2);
+                segmentOffset = sliceStart(segment / 2) - segmentStart;
+            }
+            else{
+                segmentText = instanced[children[segment / 2].getId()];
+                segmentEnd = segmentStart + segmentText.length();
+                segmentOffset = -segmentStart;
+            }
+        } while (index >= segmentEnd);
+    }
+
+    // slice i runs from the end of child i - 1 (or from) to the start of child i (or to)
+    private int sliceStart(int slice){
+        return slice == 0 ? from : children[slice - 1].getEndIndex() + 1;
+    }
+
+    private int sliceEnd(int slice){
+        return slice == children.length ? to : children[slice].getStartIndex() - 1;
+    }
+}
@@ -0,0 +1,175 @@
+package st;
+
+import java.util.Arrays;
+
+/*
+ * Open addressing hash table from a pattern, compared through KeyMatcher, to the position of
+ * the first entry stored with it. Lookups hash and compare the template content in place, so
+ * resolving a template does not allocate. The patterns themselves are read from the EntryTable
+ * the positions point into, the index only keeps their hashes.
+ */
+class KeyIndex {
+
+    static final int NOT_FOUND = -1;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final boolean caseSensitive;
+
+    private int[] hashes;
+
+    // NOT_FOUND in free slots
+    private int[] positions;
+
+    private int size;
+
+    KeyIndex(boolean caseSensitive){
+        this(caseSensitive, 0);
+    }
+
+    // sized so that expectedSize patterns fit without resizing
+    KeyIndex(boolean caseSensitive, int expectedSize){
+        this.caseSensitive = caseSensitive;
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < expectedSize * 2 + 1){
+            capacity *= 2;
+        }
+        hashes = new int[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, NOT_FOUND);
+    }
+
+    KeyIndex(KeyIndex other){
+        caseSensitive = other.caseSensitive;
+        hashes = other.hashes.clone();
+        positions = other.positions.clone();
+        size = other.size;
+    }
+
+    // an index read back from its hashes and positions, see EntryMapSnapshot
+    KeyIndex(boolean caseSensitive, int[] hashes, int[] positions, int size){
+        this.caseSensitive = caseSensitive;
+        this.hashes = hashes;
+        this.positions = positions;
+        this.size = size;
+    }
+
+    int size(){
+        return size;
+    }
+
+    int[] getHashes(){
+        return hashes;
+    }
+
+    int[] getPositions(){
+        return positions;
+    }
+
+    int get(CharSequence key, EntryTable table){
+        if (size == 0){
+            // most maps only hold one kind of entry, so the other index need not hash every content
+            return NOT_FOUND;
+        }
+        int hash = KeyMatcher.hash(key, caseSensitive);
+        int mask = positions.length - 1;
+        for (int slot = spread(hash) & mask; positions[slot] != NOT_FOUND; slot = (slot + 1) & mask){
+            if (hashes[slot] == hash && KeyMatcher.matches(key, table.getPattern(positions[slot]), caseSensitive)){
+                return positions[slot];
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    // keeps and returns the position already indexed for an equivalent pattern, since that entry
+    // was stored first, or indexes position and returns NOT_FOUND
+    int putIfAbsent(int position, EntryTable table){
+        String pattern = table.getPattern(position);
+        int hash = KeyMatcher.hash(pattern, caseSensitive);
+        int mask = positions.length - 1;
+        int slot = spread(hash) & mask;
+        for (; positions[slot] != NOT_FOUND; slot = (slot + 1) & mask){
+            if (hashes[slot] == hash && KeyMatcher.matches(pattern, table.getPattern(positions[slot]), caseSensitive)){
+                return positions[slot];
+            }
+        }
+        hashes[slot] = hash;
+        positions[slot] = position;
+        if (++size * 2 > positions.length){
+            resize();
+        }
+        return NOT_FOUND;
+    }
+
+    // indexes successor, which has an equivalent pattern, instead of position, or drops the
+    // pattern if successor is NOT_FOUND
+    void replace(int position, int successor, EntryTable table){
+        int hash = KeyMatcher.hash(table.getPattern(position), caseSensitive);
+        int mask = positions.length - 1;
+        int hole = spread(hash) & mask;
+        while (positions[hole] != position){
+            if (positions[hole] == NOT_FOUND){
+                return;
+            }
+            hole = (hole + 1) & mask;
+        }
+        if (successor != NOT_FOUND){
+            positions[hole] = successor;
+            return;
+        }
+        // shift the slots after the hole back so no lookup stops short of them
+        for (int slot = (hole + 1) & mask; positions[slot] != NOT_FOUND; slot = (slot + 1) & mask){
+            int home = spread(hashes[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)){
+                hashes[hole] = hashes[slot];
+                positions[hole] = positions[slot];
+                hole = slot;
+            }
+        }
+        positions[hole] = NOT_FOUND;
+        size--;
+    }
+
+    void clear(){
+        Arrays.fill(positions, NOT_FOUND);
+        size = 0;
+    }
+
+    // makes room for size more patterns than are indexed now, so that adding them does not resize
+    void ensureCapacity(int size){
+        int capacity = positions.length;
+        while (capacity < (this.size + size) * 2 + 1){
+            capacity *= 2;
+        }
+        if (capacity > positions.length){
+            resize(capacity);
+        }
+    }
+
+    private void resize(){
+        resize(positions.length * 2);
+    }
+
+    private void resize(int capacity){
+        int[] oldHashes = hashes;
+        int[] oldPositions = positions;
+        hashes = new int[capacity];
+        positions = new int[capacity];
+        Arrays.fill(positions, NOT_FOUND);
+        int mask = capacity - 1;
+        for (int i = 0; i < oldPositions.length; i++){
+            if (oldPositions[i] != NOT_FOUND){
+                int slot = spread(oldHashes[i]) & mask;
+                while (positions[slot] != NOT_FOUND){
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[i];
+                positions[slot] = oldPositions[i];
+            }
+        }
+    }
+
+    private static int spread(int hash){
+        return hash ^ (hash >>> 16);
+    }
+}
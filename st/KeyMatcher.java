@@ -0,0 +1,113 @@
+package st;
+
+import java.util.Locale;
+
+/**
+ * Compares template contents with entry patterns the way spec5 and spec3 describe: whitespace
+ * does not take part in the comparison and case insensitive patterns ignore case. This gives
+ * the same answers as comparing {@code replaceAll("\\s","")} (and {@code toLowerCase()}) of both
+ * sides, but walks the two sequences in place and does not allocate for ASCII text.
+ */
+public final class KeyMatcher {
+
+    private static final int ASCII_LIMIT = 0x80;
+
+    private KeyMatcher(){
+
+    }
+
+    public static boolean matches(CharSequence content, CharSequence pattern, boolean caseSensitive){
+        if (!caseSensitive && !isAsciiFoldingSafe()){
+            return normalize(content, false).equals(normalize(pattern, false));
+        }
+        int contentLength = content.length();
+        int patternLength = pattern.length();
+        int i = 0;
+        int j = 0;
+        while (true){
+            while (i < contentLength && isWhitespace(content.charAt(i))){
+                i++;
+            }
+            while (j < patternLength && isWhitespace(pattern.charAt(j))){
+                j++;
+            }
+            if (i == contentLength || j == patternLength){
+                // no character lower-cases to nothing, so the sides only match if both ran out
+                return i == contentLength && j == patternLength;
+            }
+            char left = content.charAt(i);
+            char right = pattern.charAt(j);
+            if (left != right){
+                if (caseSensitive){
+                    return false;
+                }
+                if (left >= ASCII_LIMIT || right >= ASCII_LIMIT){
+                    return normalize(content, false).equals(normalize(pattern, false));
+                }
+                if (toLowerAscii(left) != toLowerAscii(right)){
+                    return false;
+                }
+            }
+            else if (!caseSensitive && left >= ASCII_LIMIT){
+                // lower-casing outside ASCII can depend on the surrounding characters
+                return normalize(content, false).equals(normalize(pattern, false));
+            }
+            i++;
+            j++;
+        }
+    }
+
+    /**
+     * Returns the {@link String#hashCode()} of {@link #normalize(CharSequence, boolean)}, so two
+     * sequences that {@link #matches(CharSequence, CharSequence, boolean)} have the same hash.
+     */
+    public static int hash(CharSequence text, boolean caseSensitive){
+        boolean folding = !caseSensitive;
+        if (folding && !isAsciiFoldingSafe()){
+            return normalize(text, false).hashCode();
+        }
+        int hash = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++){
+            char current = text.charAt(i);
+            if (isWhitespace(current)){
+                continue;
+            }
+            if (folding){
+                if (current >= ASCII_LIMIT){
+                    return normalize(text, false).hashCode();
+                }
+                current = toLowerAscii(current);
+            }
+            hash = 31 * hash + current;
+        }
+        return hash;
+    }
+
+    public static String normalize(CharSequence text, boolean caseSensitive){
+        StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++){
+            char current = text.charAt(i);
+            if (!isWhitespace(current)){
+                builder.append(current);
+            }
+        }
+        String normalized = builder.toString();
+        return caseSensitive ? normalized : normalized.toLowerCase();
+    }
+
+    // the characters matched by the regex \s
+    static boolean isWhitespace(char c){
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static char toLowerAscii(char c){
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    // String.toLowerCase() maps ASCII letters one to one except for 'I' in Turkish and Azerbaijani
+    private static boolean isAsciiFoldingSafe(){
+        String language = Locale.getDefault().getLanguage();
+        return !language.equals("tr") && !language.equals("az");
+    }
+}
@@ -0,0 +1,41 @@
+package st;
+
+import java.util.function.Supplier;
+
+/*
+ * The value of an entry stored with EntryMap.storeLazy: the supplier is only called the first
+ * time a template resolves to the entry, once, and what it returned is kept for every later use,
+ * also by copies of the map such as its frozen snapshots.
+ */
+class LazyValue {
+
+    private final Supplier<String> supplier;
+
+    private volatile String value;
+
+    LazyValue(Supplier<String> supplier){
+        this.supplier = supplier;
+    }
+
+    Supplier<String> getSupplier(){
+        return supplier;
+    }
+
+    String get(){
+        String result = value;
+        if (result == null){
+            synchronized (this){
+                result = value;
+                if (result == null){
+                    result = supplier.get();
+                    // spec2 for values that are only known now
+                    if (result == null){
+                        throw new RuntimeException();
+                    }
+                    value = result;
+                }
+            }
+        }
+        return result;
+    }
+}
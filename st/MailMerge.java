@@ -0,0 +1,159 @@
+package st;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/*
+ * Evaluates one CompiledTemplate against record after record (see CompiledTemplate.mailMerge).
+ * When no template is nested in another, every template content is known before any record is
+ * read. The distinct contents are then indexed once, and a record is evaluated by looking each
+ * of its patterns up in that index and keeping the first value found for each content (spec8),
+ * without building an EntryMap for it. Records usually share their patterns, so where each
+ * pattern is found is remembered, and a pattern seen before costs one String hash lookup
+ * instead of a KeyMatcher one. Unmatched templates are kept or deleted per the matching
+ * mode; with no nesting both optimization branches match the same templates, so it keeps them.
+ * Otherwise contents depend on the record, and each record is stored into an EntryMap and
+ * evaluated as usual.
+ *
+ * RecordColumns go one step further: with no nesting, each content is resolved to the first
+ * column matching it once, before any record, and a record only reads those columns.
+ */
+class MailMerge {
+
+    private static final String MM_KEEP = "keep-unmatched";
+    private static final String MM_OPT = "optimization";
+
+    // patterns beyond this many are looked up every time, in case records do not share them
+    private static final int MAX_REMEMBERED_PATTERNS = 4096;
+
+    private final CompiledTemplate compiledTemplate;
+
+    private final boolean caseSensitive;
+
+    private final String matchingMode;
+
+    // one entry per distinct content, null if some template is nested in another
+    private final EntryMap contents;
+
+    private final KeyIndex contentIndex;
+
+    // the position in contents of the content of each template, by template id
+    private final int[] contentOf;
+
+    // the position in contents that a record pattern matches, or NOT_FOUND; records may be
+    // evaluated on several threads if the stream of them is parallel
+    private final ConcurrentHashMap<String, Integer> contentOfPattern = new ConcurrentHashMap<>();
+
+    // what each template is instanced to when no entry matches it, by template id
+    private final String[] unmatched;
+
+    MailMerge(CompiledTemplate compiledTemplate, boolean caseSensitive, String matchingMode){
+        this.compiledTemplate = compiledTemplate;
+        this.caseSensitive = caseSensitive;
+        this.matchingMode = matchingMode;
+        String templateString = compiledTemplate.getTemplateString();
+        int templateCount = compiledTemplate.getSortedTemplates().size();
+        EntryMap contents = new EntryMap();
+        contentOf = new int[templateCount];
+        unmatched = new String[templateCount];
+        boolean keep = MM_KEEP.equals(matchingMode) || MM_OPT.equals(matchingMode);
+        for (TemplateEngine.Template template : compiledTemplate.getSortedTemplates()){
+            if (template.getChildren().length > 0){
+                contents = null;
+                break;
+            }
+            // whitespace does not take part in matching, and keeps an empty content a valid pattern
+            contents.store(" " + template.getContent(templateString, null, false), "", caseSensitive);
+            unmatched[template.getId()] = keep ? templateString.substring(template.getStartIndex() - 1, template.getEndIndex() + 1) : "";
+        }
+        this.contents = contents;
+        if (contents == null){
+            contentIndex = null;
+            return;
+        }
+        contentIndex = caseSensitive ? contents.getCaseSensitiveIndex() : contents.getCaseInsensitiveIndex();
+        for (TemplateEngine.Template template : compiledTemplate.getSortedTemplates()){
+            contentOf[template.getId()] = contentIndex.get(template.getContent(templateString, null, false), contents.getTable());
+        }
+    }
+
+    String evaluate(Map<String, String> record){
+        if (record == null){
+            return compiledTemplate.evaluate(null, matchingMode);
+        }
+        if (contents == null){
+            EntryMap entryMap = new EntryMap();
+            entryMap.storeAll(record, caseSensitive);
+            return compiledTemplate.evaluate(entryMap, matchingMode);
+        }
+
+        String[] values = new String[contents.getTable().size()];
+        for (Map.Entry<String, String> entry : record.entrySet()){
+            // every entry is validated, as storeAll would
+            if (!contents.isEntryValid(entry.getKey(), entry.getValue())){
+                throw new RuntimeException();
+            }
+            int content = contentOf(entry.getKey());
+            if (content != KeyIndex.NOT_FOUND && values[content] == null){
+                values[content] = entry.getValue();
+            }
+        }
+        return instance(values);
+    }
+
+    // the documents for the records of records in order, evaluated as the stream is consumed
+    Stream<String> evaluate(RecordColumns records){
+        IntStream rows = IntStream.range(0, records.getRowCount());
+        if (contents == null){
+            return rows.mapToObj(row -> compiledTemplate.evaluate(records.row(row), matchingMode));
+        }
+
+        int[] columnOf = new int[contents.getTable().size()];
+        Arrays.fill(columnOf, KeyIndex.NOT_FOUND);
+        for (int column = 0; column < records.getColumnCount(); column++){
+            int content = contentOf(records.getPattern(column));
+            if (content != KeyIndex.NOT_FOUND && columnOf[content] == KeyIndex.NOT_FOUND){
+                columnOf[content] = column;
+            }
+        }
+        return rows.mapToObj(row -> {
+            String[] values = new String[columnOf.length];
+            for (int content = 0; content < columnOf.length; content++){
+                if (columnOf[content] != KeyIndex.NOT_FOUND){
+                    values[content] = records.getValue(columnOf[content], row);
+                }
+            }
+            return instance(values);
+        });
+    }
+
+    private int contentOf(String pattern){
+        Integer remembered = contentOfPattern.get(pattern);
+        if (remembered != null){
+            return remembered;
+        }
+        int content = contentIndex.get(pattern, contents.getTable());
+        if (contentOfPattern.size() < MAX_REMEMBERED_PATTERNS){
+            contentOfPattern.put(pattern, content);
+        }
+        return content;
+    }
+
+    // the template string with each template instanced to the value found for its content
+    private String instance(String[] values){
+        TemplateEngine.Template root = compiledTemplate.getRoot();
+        if (root == null){
+            return compiledTemplate.getTemplateString();
+        }
+        String[] instanced = Arrays.copyOf(unmatched, unmatched.length);
+        for (int id = 0; id < instanced.length; id++){
+            if (values[contentOf[id]] != null){
+                instanced[id] = values[contentOf[id]];
+            }
+        }
+        return root.getContent(compiledTemplate.getTemplateString(), instanced, false).toString();
+    }
+}
@@ -0,0 +1,94 @@
+package st;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * An EntryMap of its own entries layered over a parent EntryMap that is shared, not copied. A
+ * template is looked up in the first layer and only then in the second one, each through its own
+ * index, so lookups do not get slower as the parent grows. By default the overlay's own entries
+ * come first; with {@link Precedence#PARENT_FIRST} the parent wins instead.
+ *
+ * The combined entries are ordered (spec4, spec8) as the first layer's followed by the second
+ * layer's. Stores only go to the overlay and are unique within it (spec5), and update() and
+ * remove() only change the overlay's own entries; an entry also in the parent is listed once by
+ * {@link #getEntries()}. Changes to the parent show through the overlay.
+ */
+public class OverlayEntryMap extends EntryMap {
+
+    public enum Precedence {
+        CHILD_FIRST,
+        PARENT_FIRST
+    }
+
+    private final EntryMap parent;
+
+    private final Precedence precedence;
+
+    public OverlayEntryMap(EntryMap parent){
+        this(parent, Precedence.CHILD_FIRST);
+    }
+
+    public OverlayEntryMap(EntryMap parent, Precedence precedence){
+        if (parent == null || precedence == null){
+            throw new RuntimeException();
+        }
+        this.parent = parent;
+        this.precedence = precedence;
+    }
+
+    // the same entries over the given view of the parent
+    private OverlayEntryMap(OverlayEntryMap overlay, EntryMap parentView){
+        super(overlay, 0);
+        this.parent = parentView;
+        this.precedence = overlay.precedence;
+    }
+
+    public EntryMap getParent() {
+        return parent;
+    }
+
+    public Precedence getPrecedence() {
+        return precedence;
+    }
+
+    @Override
+    public ArrayList<Entry> getEntries() {
+        ArrayList<Entry> first = precedence == Precedence.CHILD_FIRST ? super.getEntries() : parent.getEntries();
+        ArrayList<Entry> second = precedence == Precedence.CHILD_FIRST ? parent.getEntries() : super.getEntries();
+        HashSet<Entry> listed = new HashSet<>(first);
+        for (Entry entry : second){
+            if (!listed.contains(entry)){
+                first.add(entry);
+            }
+        }
+        return first;
+    }
+
+    // a flat copy of the combined entries, in which lazily computed values stay lazy
+    @Override
+    public FrozenEntryMap freeze(){
+        EntryTable parentTable = parent.freeze().getTable();
+        EntryMap combined = new EntryMap();
+        combined.storeAll(precedence == Precedence.CHILD_FIRST ? getTable() : parentTable);
+        combined.storeAll(precedence == Precedence.CHILD_FIRST ? parentTable : getTable());
+        return combined.freeze();
+    }
+
+    // pins the parent's view too, if it has one that changes (for example a ConcurrentEntryMap)
+    @Override
+    EntryMap readView(){
+        EntryMap parentView = parent.readView();
+        return parentView == parent ? this : new OverlayEntryMap(this, parentView);
+    }
+
+    @Override
+    String find(CharSequence templateContent){
+        if (precedence == Precedence.CHILD_FIRST){
+            String value = super.find(templateContent);
+            return value != null ? value : parent.find(templateContent);
+        }
+        String value = parent.find(templateContent);
+        return value != null ? value : super.find(templateContent);
+    }
+}
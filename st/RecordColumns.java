@@ -0,0 +1,99 @@
+package st;
+
+/**
+ * Records for {@link CompiledTemplate#mailMerge(RecordColumns, String)} laid out column by
+ * column: one pattern per column, and in each column one value per record. Record r evaluates
+ * as an EntryMap would that stored pattern c with the value at r in column c, for every column
+ * in order and with the same caseSensitive flag (spec3), so a template resolves to the first
+ * column whose pattern matches its content, ignoring whitespace (spec5). Templates are resolved
+ * to a column once, not once per record, and no entries are created for the records.
+ *
+ * The arrays are used as they are, not copied, and should not be changed afterwards. They are
+ * validated up front: a null or empty pattern, a null value or columns of different lengths
+ * throw a RuntimeException, as storing such an entry would (spec2).
+ */
+public final class RecordColumns {
+
+    private final String[] patterns;
+
+    private final String[][] columns;
+
+    private final boolean caseSensitive;
+
+    private final int rowCount;
+
+    // pattern c stored at position c, so that its key index resolves a template to its column
+    private final EntryMap header;
+
+    private final KeyIndex headerIndex;
+
+    public RecordColumns(String[] patterns, String[][] columns, Boolean caseSensitive) throws RuntimeException{
+        if (patterns == null || columns == null || patterns.length != columns.length){
+            throw new RuntimeException();
+        }
+        this.patterns = patterns;
+        this.columns = columns;
+        this.caseSensitive = Boolean.TRUE.equals(caseSensitive);
+        this.rowCount = columns.length == 0 ? 0 : columns[0].length;
+        header = new EntryMap();
+        for (int column = 0; column < columns.length; column++){
+            if (columns[column] == null || columns[column].length != rowCount){
+                throw new RuntimeException();
+            }
+            for (String value : columns[column]){
+                if (!header.isEntryValid(patterns[column], value)){
+                    throw new RuntimeException();
+                }
+            }
+            // the column number as value keeps columns with equal patterns apart, so none is dropped
+            header.store(patterns[column], String.valueOf(column), this.caseSensitive);
+        }
+        headerIndex = this.caseSensitive ? header.getCaseSensitiveIndex() : header.getCaseInsensitiveIndex();
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    public String getPattern(int column) {
+        return patterns[column];
+    }
+
+    public String getValue(int column, int row) {
+        return columns[column][row];
+    }
+
+    public boolean isCaseSensitive() {
+        return caseSensitive;
+    }
+
+    // the first column whose pattern matches templateContent, or KeyIndex.NOT_FOUND
+    int findColumn(CharSequence templateContent){
+        return headerIndex.get(templateContent, header.getTable());
+    }
+
+    // one record as an EntryMap for evaluation; it shares the header's storage and only overrides find
+    EntryMap row(int row){
+        return new Row(row);
+    }
+
+    private final class Row extends EntryMap {
+
+        private final int row;
+
+        Row(int row){
+            super(header.getTable(), header.getCaseSensitiveIndex(), header.getCaseInsensitiveIndex());
+            this.row = row;
+        }
+
+        @Override
+        String find(CharSequence templateContent){
+            int column = findColumn(templateContent);
+            return column == KeyIndex.NOT_FOUND ? null : columns[column][row];
+        }
+    }
+}
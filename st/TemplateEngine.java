@@ -1,38 +1,201 @@
 package st;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Stack;
-
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Evaluates template strings against an EntryMap (see Specs.txt).
+ *
+ * A TemplateEngine is thread-safe: it holds no state that changes after construction, and
+ * everything an evaluation works on (the parsed templates of a CompiledTemplate, what each
+ * template is instanced to) is either immutable or created by that evaluation alone. One
+ * instance, and one CompiledTemplate, can be shared by any number of threads. The EntryMap is
+ * only read; an EntryMap that is still being stored to needs to be a {@link ConcurrentEntryMap},
+ * or be replaced by its {@link EntryMap#freeze()} snapshot, while other threads evaluate with it.
+ */
 public class TemplateEngine {
 
-    private static final Character TEMPLATE_START_PREFIX = '$';
-    private static final Character TEMPLATE_START = '{';
-    private static final Character TEMPLATE_END = '}';
+    private static final char TEMPLATE_START_PREFIX = '$';
+    private static final char TEMPLATE_START = '{';
+    private static final char TEMPLATE_END = '}';
+
+    private static final int INITIAL_CANDIDATES = 16;
+
+    // evaluateAll splits its batch into about this many tasks per worker thread, to even out load
+    private static final int TASKS_PER_THREAD = 4;
+
+    private static final Template[] NO_CHILDREN = new Template[0];
 
     private static final String MM_KEEP = "keep-unmatched";
     private static final String MM_DELETE = "delete-unmatched";
     private static final String MM_OPT = "optimization";
 
+    // spec7: shorter templates first, same-length templates from left to right
+    private static final Comparator<Template> TEMPLATE_ORDER =
+            Comparator.<Template>comparingInt(Template::getContentLength)
+                    .thenComparingInt(Template::getStartIndex);
+
+    // runs the delete-unmatched branch of optimization mode next to the keep-unmatched one, if set
+    private final Executor optimizationExecutor;
+
     public TemplateEngine(){
+        this(null);
+    }
 
+    /**
+     * An engine that evaluates the two branches of "optimization" mode at the same time, the
+     * delete-unmatched one on the given executor (for example {@link ForkJoinPool#commonPool()}).
+     * This lowers the latency of large evaluations at the cost of some duplicated work.
+     */
+    public TemplateEngine(Executor optimizationExecutor){
+        this.optimizationExecutor = optimizationExecutor;
     }
 
     public String evaluate(String templateString, EntryMap entryMap, String matchingMode){
         if (!isEvaluationPossible(templateString, entryMap)){
             return templateString;
         }
+        return compile(templateString).evaluate(entryMap, matchingMode);
+    }
+
+    /**
+     * Writes what evaluate(templateString, entryMap, matchingMode) returns to out, without
+     * building it as one String first: once every template is instanced, the text between the
+     * outermost templates and what they were instanced to are appended piece by piece. Nothing
+     * is written for a null templateString.
+     */
+    public void evaluate(String templateString, EntryMap entryMap, String matchingMode, Appendable out) throws IOException{
+        if (!isEvaluationPossible(templateString, entryMap)){
+            if (templateString != null){
+                out.append(templateString);
+            }
+            return;
+        }
+        compile(templateString).evaluate(entryMap, matchingMode, out);
+    }
+
+    /**
+     * Evaluates every template string as evaluate(templateString, entryMap, matchingMode) would and
+     * returns the results in the same order. The batch is split across the cores with the common
+     * fork-join pool, and all of it is looked up in one read view of entryMap, so a
+     * ConcurrentEntryMap stored to meanwhile is seen the same way by every template string.
+     */
+    public List<String> evaluateAll(List<String> templateStrings, EntryMap entryMap, String matchingMode){
+        String[] templates = templateStrings.toArray(new String[0]);
+        String[] results = new String[templates.length];
+        if (templates.length == 0){
+            return Arrays.asList(results);
+        }
+        EntryMap view = entryMap == null ? null : entryMap.readView();
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        int batchSize = Math.max(1, templates.length / (parallelism * TASKS_PER_THREAD));
+        ForkJoinPool.commonPool().invoke(new EvaluateAllTask(templates, results, 0, templates.length, batchSize, view, matchingMode));
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Evaluates templateString against every record, parsing it only once; see
+     * {@link CompiledTemplate#mailMerge(Stream, Boolean, String)}.
+     */
+    public Stream<String> mailMerge(String templateString, Stream<? extends Map<String, String>> records, Boolean caseSensitive, String matchingMode){
+        return compile(templateString).mailMerge(records, caseSensitive, matchingMode);
+    }
+
+    // the same, with each document evaluated when next() is called
+    public Iterator<String> mailMerge(String templateString, Iterator<? extends Map<String, String>> records, Boolean caseSensitive, String matchingMode){
+        Stream<? extends Map<String, String>> stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED), false);
+        return mailMerge(templateString, stream, caseSensitive, matchingMode).iterator();
+    }
+
+    // the same for records laid out column by column, see RecordColumns
+    public Stream<String> mailMerge(String templateString, RecordColumns records, String matchingMode){
+        return compile(templateString).mailMerge(records, matchingMode);
+    }
+
+    public CompiledTemplate compile(String templateString){
+        ArrayList<Template> templates = new ArrayList<>();
+        Template root = null;
+        if (templateString != null && !templateString.isEmpty()){
+            root = identifyTemplates(templateString, templates);
+        }
+        return new CompiledTemplate(this, templateString, root, sortTemplates(templates));
+    }
+
+    String evaluate(CompiledTemplate compiledTemplate, EntryMap entryMap, String matchingMode){
+        String templateString = compiledTemplate.getTemplateString();
+        if (!isEvaluationPossible(templateString, entryMap)){
+            return templateString;
+        }
+        return evaluateInView(compiledTemplate, entryMap.readView(), matchingMode);
+    }
+
+    void evaluate(CompiledTemplate compiledTemplate, EntryMap entryMap, String matchingMode, Appendable out) throws IOException{
+        String templateString = compiledTemplate.getTemplateString();
+        if (!isEvaluationPossible(templateString, entryMap)){
+            if (templateString != null){
+                out.append(templateString);
+            }
+            return;
+        }
+        if (!isMatchingModeValid(matchingMode)){
+            matchingMode = MM_DELETE;
+        }
+
+        Result result = instantiate(templateString, compiledTemplate.getSortedTemplates(), compiledTemplate.getOutermost(), entryMap.readView(), matchingMode, false);
+
+        compiledTemplate.getRoot().appendContent(templateString, result.getInstanced(), out);
+    }
+
+    // view is what readView() returned, and is not asked for a view again
+    private String evaluateInView(CompiledTemplate compiledTemplate, EntryMap view, String matchingMode){
         if (!isMatchingModeValid(matchingMode)){
             matchingMode = MM_DELETE;
         }
 
-        HashSet<Template> templates = identifyTemplates(templateString);
+        Result result = instantiate(compiledTemplate.getTemplateString(), compiledTemplate.getSortedTemplates(), compiledTemplate.getOutermost(), view, matchingMode, false);
 
-        ArrayList<Template> sortedTemplates = sortTemplates(templates);
+        return compiledTemplate.getRoot().getContent(compiledTemplate.getTemplateString(), result.getInstanced(), false).toString();
+    }
+
+    /**
+     * Returns how many templates evaluate(templateString, entryMap, matchingMode) replaces, without
+     * building the instanced string. Template contents are read in place in the template string
+     * instead of being copied out, so this is cheaper than evaluating.
+     */
+    public int countReplacements(String templateString, EntryMap entryMap, String matchingMode){
+        if (!isEvaluationPossible(templateString, entryMap)){
+            return 0;
+        }
+        return compile(templateString).countReplacements(entryMap, matchingMode);
+    }
+
+    int countReplacements(CompiledTemplate compiledTemplate, EntryMap entryMap, String matchingMode){
+        String templateString = compiledTemplate.getTemplateString();
+        if (!isEvaluationPossible(templateString, entryMap)){
+            return 0;
+        }
+        if (!isMatchingModeValid(matchingMode)){
+            matchingMode = MM_DELETE;
+        }
 
-        Result result = instantiate(templateString, sortedTemplates, entryMap.getEntries(), matchingMode);
+        Result result = instantiate(templateString, compiledTemplate.getSortedTemplates(), compiledTemplate.getOutermost(), entryMap.readView(), matchingMode, true);
 
-        return result.getInstancedString();
+        return result.getTemplatesReplaced();
     }
 
     private Boolean isEvaluationPossible(String templateString, EntryMap entryMap){
@@ -56,254 +219,296 @@ public class TemplateEngine {
         );
     }
 
-    private HashSet<Template> identifyTemplates(String templateString){
-        HashSet<Template> templates = new HashSet<>();
-        Stack<Integer> templateCandidates = new Stack<>();
-        Integer charIndex = 0;
-        Boolean underSequence = Boolean.FALSE;
-        while (charIndex < templateString.length()){
-            if (Character.compare(templateString.charAt(charIndex), TEMPLATE_START_PREFIX) == 0){
-                underSequence = Boolean.TRUE;
-                charIndex++;
-                continue;
-            }
-            if (Character.compare(templateString.charAt(charIndex), TEMPLATE_START) == 0){
-                if(underSequence){
-                    templateCandidates.add(charIndex);
-                }
-                underSequence = Boolean.FALSE;
-                charIndex++;
+    // Adds every template to templates and returns a root template spanning the whole template
+    // string, whose children are the templates that are not nested in any other (spec6).
+    private Template identifyTemplates(String templateString, ArrayList<Template> templates){
+        // templates found so far whose enclosing template, if any, is not closed yet
+        ArrayList<Template> withoutParent = new ArrayList<>();
+        int[] templateCandidates = new int[INITIAL_CANDIDATES];
+        int[] candidateChildrenStart = new int[INITIAL_CANDIDATES];
+        int candidateCount = 0;
+        boolean underSequence = false;
+        int length = templateString.length();
+        for (int charIndex = 0; charIndex < length; charIndex++){
+            char current = templateString.charAt(charIndex);
+            if (current == TEMPLATE_START_PREFIX){
+                underSequence = true;
                 continue;
             }
-            if (Character.compare(templateString.charAt(charIndex), TEMPLATE_END) == 0){
-                if (!templateCandidates.isEmpty()){
-                    Template template;
-                    Integer startIndex = templateCandidates.pop();
-                    if ((startIndex + 1) == charIndex){
-                        template = new Template(startIndex, charIndex, "");
+            if (current == TEMPLATE_START){
+                if (underSequence){
+                    if (candidateCount == templateCandidates.length){
+                        templateCandidates = Arrays.copyOf(templateCandidates, candidateCount * 2);
+                        candidateChildrenStart = Arrays.copyOf(candidateChildrenStart, candidateCount * 2);
                     }
-                    else{
-                        template = new Template(startIndex, charIndex, templateString.substring(startIndex+1, charIndex));
-                    }
-                    templates.add(template);
+                    templateCandidates[candidateCount] = charIndex;
+                    candidateChildrenStart[candidateCount++] = withoutParent.size();
                 }
-                underSequence = Boolean.FALSE;
-                charIndex++;
-                continue;
             }
-            underSequence = Boolean.FALSE;
-            charIndex++;
+            else if (current == TEMPLATE_END && candidateCount > 0){
+                candidateCount--;
+                Template template = new Template(templates.size(), templateCandidates[candidateCount], charIndex,
+                        takeChildren(withoutParent, candidateChildrenStart[candidateCount]));
+                templates.add(template);
+                withoutParent.add(template);
+            }
+            underSequence = false;
         }
-        return templates;
+        return new Template(-1, -1, length, takeChildren(withoutParent, 0));
     }
 
-    private ArrayList<Template> sortTemplates(HashSet<Template> templates){
-        ArrayList<Template> sortedTemplates = new ArrayList<>();
-        Template currentTemplate;
-        Integer minLength;
-        Integer startIndex;
-        while (!templates.isEmpty()) {
-            currentTemplate = null;
-            minLength = Integer.MAX_VALUE;
-            startIndex = Integer.MAX_VALUE;
-            for (Template current : templates){
-                if (current.getContent().length() < minLength){
-                    currentTemplate = current;
-                    minLength = current.getContent().length();
-                    startIndex = current.getStartIndex();
-                }
-                else{
-                    if (current.getContent().length() == minLength){
-                        if (current.getStartIndex() < startIndex){
-                            currentTemplate = current;
-                            minLength = current.getContent().length();
-                            startIndex = current.getStartIndex();
-                        }
-                    }
-                }
-            }
-            if (currentTemplate != null) {
-                templates.remove(currentTemplate);
-                sortedTemplates.add(currentTemplate);
-            }
-            else{
-                throw new RuntimeException();
-            }
+    private Template[] takeChildren(ArrayList<Template> withoutParent, int fromIndex){
+        if (fromIndex == withoutParent.size()){
+            return NO_CHILDREN;
         }
+        List<Template> children = withoutParent.subList(fromIndex, withoutParent.size());
+        Template[] result = children.toArray(new Template[0]);
+        children.clear();
+        return result;
+    }
+
+    private ArrayList<Template> sortTemplates(ArrayList<Template> templates){
+        ArrayList<Template> sortedTemplates = new ArrayList<>(templates);
+        sortedTemplates.sort(TEMPLATE_ORDER);
         return sortedTemplates;
     }
 
-    private Result instantiate(String instancedString, ArrayList<Template> sortedTemplates, ArrayList<EntryMap.Entry> sortedEntries, String matchingMode){
+    // countOnly reads contents in place, for callers that only use the number of templates replaced
+    private Result instantiate(String templateString, List<Template> sortedTemplates, boolean[] outermost, EntryMap entryMap, String matchingMode, boolean countOnly){
+        if (matchingMode.equals(MM_OPT) && optimizationExecutor != null) {
+            return instantiateInParallel(templateString, sortedTemplates, outermost, entryMap, countOnly);
+        }
         int templatesReplaced = 0;
-        Boolean replaceHappened;
         Template currentTemplate;
-        EntryMap.Entry currentEntry;
+        String currentValue;
+        // what each template has been replaced with so far, indexed by template id
+        String[] instanced = new String[sortedTemplates.size()];
 
         if (matchingMode.equals(MM_OPT)) {
-            String delInstancedString = instancedString;
+            // Both modes are followed in one pass. They only part ways below an unmatched
+            // template, so a template whose children were instanced alike is matched once.
+            String[] delInstanced = new String[sortedTemplates.size()];
             int delTemplatesReplaced = 0;
 
-            // We need deep copies of the template and entry arrays
-            ArrayList<Template> delSortedTemplates = new ArrayList<Template>();
-            for (Template template : sortedTemplates) {
-                delSortedTemplates.add(new Template(template.getStartIndex(), template.getEndIndex(), template.getContent()));
-            }
-
-            ArrayList<EntryMap.Entry> delSortedEntries = new ArrayList<EntryMap.Entry>();
-            EntryMap delMap = new EntryMap();
-            for (EntryMap.Entry entry : sortedEntries) {
-                delSortedEntries.add(delMap.new Entry(entry.getPattern(), entry.getValue(), entry.getCaseSensitive()));
-            }
-
-
-            for (int i = 0; i < sortedTemplates.size(); i++){   //keep-unmatched
+            for (int i = 0; i < sortedTemplates.size(); i++){
                 currentTemplate = sortedTemplates.get(i);
+                CharSequence content = currentTemplate.getContent(templateString, instanced, countOnly);
+                currentValue = entryMap.find(content);
 
-                for(EntryMap.Entry entry : sortedEntries) {
-
-                    if (isAMatch(currentTemplate, entry)){
-                        instancedString = doReplace(instancedString, currentTemplate, i, entry.getValue(), sortedTemplates);
-                        templatesReplaced++;
-                        break;
-                    }
+                if (currentValue != null){   //keep-unmatched
+                    instanced[currentTemplate.getId()] = currentValue;
+                    templatesReplaced++;
                 }
-            }
-
-            for (int i = 0; i < delSortedTemplates.size(); i++) {   //delete-unmatched
-                currentTemplate = delSortedTemplates.get(i);
-                replaceHappened = false;
-
-                for(EntryMap.Entry entry : delSortedEntries) {
-
-                    if (isAMatch(currentTemplate, entry)) {
-                        delInstancedString = doReplace(delInstancedString, currentTemplate, i, entry.getValue(), delSortedTemplates);
-                        replaceHappened = true;
-                        delTemplatesReplaced++;
-                        break;
-                    }
+                else{
+                    instanced[currentTemplate.getId()] = keepTemplate(content, countOnly && outermost[currentTemplate.getId()]);
                 }
 
-                if (!replaceHappened) {
-                    delInstancedString = doReplace(delInstancedString, currentTemplate, i, "", delSortedTemplates);
+                if (!currentTemplate.isInstancedAlike(instanced, delInstanced)){   //delete-unmatched
+                    currentValue = entryMap.find(currentTemplate.getContent(templateString, delInstanced, countOnly));
+                }
+                if (currentValue != null) {
+                    delInstanced[currentTemplate.getId()] = currentValue;
+                    delTemplatesReplaced++;
+                }
+                else {
+                    delInstanced[currentTemplate.getId()] = "";
                 }
             }
 
             return delTemplatesReplaced > templatesReplaced
-                    ? new Result(delInstancedString, delTemplatesReplaced)
-                    : new Result(instancedString, templatesReplaced);
+                    ? new Result(delInstanced, delTemplatesReplaced)
+                    : new Result(instanced, templatesReplaced);
 
 
         } else {
             // Original modes
-            for (int i = 0; i < sortedTemplates.size(); i++) {   //keep unmatched
-                currentTemplate = sortedTemplates.get(i);
-                replaceHappened = false;
-
-                for (int j = 0; j < sortedEntries.size(); j++) {
-                    currentEntry = sortedEntries.get(j);
-                    if (isAMatch(currentTemplate, currentEntry)){
-                        instancedString = doReplace(instancedString, currentTemplate, i, currentEntry.getValue(), sortedTemplates);
-                        replaceHappened = true;
-                        break;
-                    }
-                }
+            templatesReplaced = instantiateBranch(templateString, sortedTemplates, outermost, entryMap, matchingMode.equals(MM_DELETE), instanced, countOnly);
+            return new Result(instanced, templatesReplaced);
+        }
+    }
 
-                if (replaceHappened) {
-                    templatesReplaced++;
-                } else if (matchingMode.equals(MM_DELETE)) {
-                    instancedString = doReplace(instancedString, currentTemplate, i, "", sortedTemplates);
-                }
+    private Result instantiateInParallel(String templateString, List<Template> sortedTemplates, boolean[] outermost, EntryMap entryMap, boolean countOnly){
+        String[] instanced = new String[sortedTemplates.size()];
+        String[] delInstanced = new String[sortedTemplates.size()];
+        CompletableFuture<Integer> delete = CompletableFuture.supplyAsync(
+                () -> instantiateBranch(templateString, sortedTemplates, outermost, entryMap, true, delInstanced, countOnly), optimizationExecutor);
+        int templatesReplaced = instantiateBranch(templateString, sortedTemplates, outermost, entryMap, false, instanced, countOnly);
+        int delTemplatesReplaced;
+        try {
+            delTemplatesReplaced = delete.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-
-            return new Result(instancedString, templatesReplaced);
+            throw e;
         }
+
+        return delTemplatesReplaced > templatesReplaced
+                ? new Result(delInstanced, delTemplatesReplaced)
+                : new Result(instanced, templatesReplaced);
     }
 
-    private Boolean isAMatch(Template template, EntryMap.Entry entry){
-        String leftHandSide = template.getContent().replaceAll("\\s","");
-        String rightHandSide = entry.getPattern().replaceAll("\\s","");
-        if (entry.caseSensitive){
-            return leftHandSide.equals(rightHandSide);
-        }
-        else{
-            return leftHandSide.toLowerCase().equals(rightHandSide.toLowerCase());
+    // fills in what every template is instanced to in one matching mode and returns how many were matched
+    private int instantiateBranch(String templateString, List<Template> sortedTemplates, boolean[] outermost, EntryMap entryMap, boolean deleteUnmatched, String[] instanced, boolean countOnly){
+        int templatesReplaced = 0;
+        Boolean replaceHappened;
+        Template currentTemplate;
+        String currentValue;
+
+        for (int i = 0; i < sortedTemplates.size(); i++) {
+            currentTemplate = sortedTemplates.get(i);
+            replaceHappened = false;
+            CharSequence content = currentTemplate.getContent(templateString, instanced, countOnly);
+            currentValue = entryMap.find(content);
+
+            if (currentValue != null){
+                instanced[currentTemplate.getId()] = currentValue;
+                replaceHappened = true;
+            }
+
+            if (replaceHappened) {
+                templatesReplaced++;
+            } else if (deleteUnmatched) {
+                instanced[currentTemplate.getId()] = "";
+            } else {
+                instanced[currentTemplate.getId()] = keepTemplate(content, countOnly && outermost[currentTemplate.getId()]);
+            }
         }
+        return templatesReplaced;
     }
 
-    private String doReplace(String instancedString, Template currentTemplate, Integer currentTemplateIndex, String replaceValue, ArrayList<Template> sortedTemplates){
-        Integer diff = 3 + currentTemplate.getContent().length() - replaceValue.length();
-        String firstHalf;
-        String secondHalf;
-        if (currentTemplate.getStartIndex() == 1){
-            firstHalf = "";
-        }
-        else{
-            firstHalf = instancedString.substring(0, currentTemplate.getStartIndex()-1);
-        }
-        if (currentTemplate.getEndIndex() == instancedString.length()){
-            secondHalf = "";
-        }
-        else{
-            secondHalf = instancedString.substring(currentTemplate.getEndIndex()+1);
+    // an unmatched template that is kept still has its boundaries, around its instanced content,
+    // unless the text is never read: only the root reads what an outermost template was instanced
+    // to, and the root is not built when only counting
+    private String keepTemplate(CharSequence content, boolean unread){
+        if (unread){
+            return "";
         }
+        return "" + TEMPLATE_START_PREFIX + TEMPLATE_START + content + TEMPLATE_END;
+    }
 
-        StringBuilder builder = new StringBuilder();
-        builder.append(firstHalf);
-        builder.append(replaceValue);
-        builder.append(secondHalf);
-        String updatedInstancedString = builder.toString();
+    // evaluates templates[from, to) into results, splitting the range until it holds batchSize or fewer
+    private class EvaluateAllTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final String[] templates;
+        private final String[] results;
+        private final int from;
+        private final int to;
+        private final int batchSize;
+        private final EntryMap view;
+        private final String matchingMode;
+
+        EvaluateAllTask(String[] templates, String[] results, int from, int to, int batchSize, EntryMap view, String matchingMode) {
+            this.templates = templates;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.batchSize = batchSize;
+            this.view = view;
+            this.matchingMode = matchingMode;
+        }
 
-        Template temp = null;
-        for (int i=currentTemplateIndex+1; i<sortedTemplates.size(); i++){
-            temp = sortedTemplates.get(i);
-            if ((temp.getStartIndex() < currentTemplate.getStartIndex()) && (temp.getEndIndex() > currentTemplate.getEndIndex()))
-            {
-                sortedTemplates.get(i).setEndIndex(temp.getEndIndex() - diff);
-                sortedTemplates.get(i).setContent(updatedInstancedString.substring(sortedTemplates.get(i).getStartIndex()+1, sortedTemplates.get(i).getEndIndex()));
+        @Override
+        protected void compute() {
+            if (to - from > batchSize) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EvaluateAllTask(templates, results, from, middle, batchSize, view, matchingMode),
+                        new EvaluateAllTask(templates, results, middle, to, batchSize, view, matchingMode));
+                return;
             }
-            else {
-                if (temp.getStartIndex() > currentTemplate.getEndIndex()) {
-                    sortedTemplates.get(i).setStartIndex(temp.getStartIndex() - diff);
-                    sortedTemplates.get(i).setEndIndex(temp.getEndIndex() - diff);
-                }
+            for (int i = from; i < to; i++) {
+                String templateString = templates[i];
+                results[i] = isEvaluationPossible(templateString, view)
+                        ? evaluateInView(compile(templateString), view, matchingMode)
+                        : templateString;
             }
         }
-        return updatedInstancedString;
     }
 
-    class Template {
-        Integer startIndex;
-        Integer endIndex;
-        String content;
+    static class Template {
+        final int id;
+        final int startIndex;
+        final int endIndex;
+        // the templates directly nested in this one, from left to right
+        final Template[] children;
 
-        Template(Integer startIndex, Integer endIndex, String content) {
+        Template(int id, int startIndex, int endIndex, Template[] children) {
+            this.id = id;
             this.startIndex = startIndex;
             this.endIndex = endIndex;
-            this.content = content;
+            this.children = children;
+        }
+
+        public int getId() {
+            return id;
         }
 
-        public Integer getStartIndex() {
+        public int getStartIndex() {
             return startIndex;
         }
 
-        public Integer getEndIndex() {
+        public int getEndIndex() {
             return endIndex;
         }
 
-        public String getContent() {
-            return content;
+        public Template[] getChildren() {
+            return children;
         }
 
-        public void setStartIndex(Integer startIndex) {
-            this.startIndex = startIndex;
+        public int getContentLength() {
+            return endIndex - startIndex - 1;
         }
 
-        public void setEndIndex(Integer endIndex) {
-            this.endIndex = endIndex;
+        // whether every child was instanced to the same text in both, so this content is the same too
+        public boolean isInstancedAlike(String[] instanced, String[] otherInstanced) {
+            for (Template child : children) {
+                if (!instanced[child.getId()].equals(otherInstanced[child.getId()])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the text between the boundaries, with every child replaced by what it was instanced to,
+        // read in place in the template string instead of copied if inPlace is set
+        public CharSequence getContent(String templateString, String[] instanced, boolean inPlace) {
+            if (inPlace) {
+                return new InstancedContent(templateString, startIndex + 1, endIndex, children, instanced);
+            }
+            if (children.length == 0) {
+                return templateString.substring(startIndex + 1, endIndex);
+            }
+            StringBuilder builder = new StringBuilder(getContentLength());
+            int position = startIndex + 1;
+            for (Template child : children) {
+                builder.append(templateString, position, child.getStartIndex() - 1);
+                builder.append(instanced[child.getId()]);
+                position = child.getEndIndex() + 1;
+            }
+            builder.append(templateString, position, endIndex);
+            return builder.toString();
+        }
+
+        // appends the same text as getContent, without building it
+        public void appendContent(String templateString, String[] instanced, Appendable out) throws IOException {
+            int position = startIndex + 1;
+            for (Template child : children) {
+                appendSlice(templateString, position, child.getStartIndex() - 1, out);
+                out.append(instanced[child.getId()]);
+                position = child.getEndIndex() + 1;
+            }
+            appendSlice(templateString, position, endIndex, out);
         }
 
-        public void setContent(String content) {
-            this.content = content;
+        // Writer.append would copy the slice into a new String first
+        private void appendSlice(String templateString, int from, int to, Appendable out) throws IOException {
+            if (out instanceof Writer) {
+                ((Writer) out).write(templateString, from, to - from);
+            }
+            else {
+                out.append(templateString, from, to);
+            }
         }
 
         @Override
@@ -313,33 +518,27 @@ public class TemplateEngine {
 
             Template template = (Template) o;
 
-            if (getStartIndex() != null ? !getStartIndex().equals(template.getStartIndex()) : template.getStartIndex() != null)
-                return false;
-            if (getEndIndex() != null ? !getEndIndex().equals(template.getEndIndex()) : template.getEndIndex() != null)
-                return false;
-            return getContent() != null ? getContent().equals(template.getContent()) : template.getContent() == null;
+            return getStartIndex() == template.getStartIndex() && getEndIndex() == template.getEndIndex();
         }
 
         @Override
         public int hashCode() {
-            int result = getStartIndex() != null ? getStartIndex().hashCode() : 0;
-            result = 31 * result + (getEndIndex() != null ? getEndIndex().hashCode() : 0);
-            result = 31 * result + (getContent() != null ? getContent().hashCode() : 0);
-            return result;
+            return 31 * getStartIndex() + getEndIndex();
         }
     }
 
-    class Result{
-        String instancedString;
-        Integer templatesReplaced;
+    static class Result{
+        // what each template was instanced to in the chosen matching mode, by template id
+        final String[] instanced;
+        final Integer templatesReplaced;
 
-        Result(String instancedString, Integer templatesReplaced) {
-            this.instancedString = instancedString;
+        Result(String[] instanced, Integer templatesReplaced) {
+            this.instanced = instanced;
             this.templatesReplaced = templatesReplaced;
         }
 
-        String getInstancedString() {
-            return instancedString;
+        String[] getInstanced() {
+            return instanced;
         }
 
         Integer getTemplatesReplaced() {